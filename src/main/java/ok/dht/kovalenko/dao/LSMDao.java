@@ -2,15 +2,21 @@ package ok.dht.kovalenko.dao;
 
 import ok.dht.ServiceConfig;
 import ok.dht.kovalenko.dao.aliases.DiskSSTable;
+import ok.dht.kovalenko.dao.aliases.DiskSSTableVersion;
+import ok.dht.kovalenko.dao.aliases.MappedFileDiskSSTable;
 import ok.dht.kovalenko.dao.aliases.MappedFileDiskSSTableStorage;
 import ok.dht.kovalenko.dao.aliases.MemorySSTable;
 import ok.dht.kovalenko.dao.aliases.MemorySSTableStorage;
 import ok.dht.kovalenko.dao.aliases.TypedEntry;
 import ok.dht.kovalenko.dao.base.Dao;
+import ok.dht.kovalenko.dao.dto.MappedPairedFiles;
 import ok.dht.kovalenko.dao.iterators.MergeIterator;
+import ok.dht.kovalenko.dao.iterators.PinnedIterator;
 import ok.dht.kovalenko.dao.runnables.CompactRunnable;
 import ok.dht.kovalenko.dao.runnables.FlushRunnable;
+import ok.dht.kovalenko.dao.utils.CompactionUtils;
 import ok.dht.kovalenko.dao.utils.DaoUtils;
+import ok.dht.kovalenko.dao.utils.ManifestUtils;
 import ok.dht.kovalenko.dao.visitors.ConfigVisitor;
 
 import java.io.IOException;
@@ -19,45 +25,90 @@ import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class LSMDao implements Dao<ByteBuffer, TypedEntry> {
 
-    private static final int N_MEMORY_SSTABLES = 2;
+    private static final int N_FLUSH_SSTABLES = 2;
     private static final int FLUSH_TRESHOLD_BYTES = 70 * (1 << 20); // 70MB
+    // Writes are slowed down while the flusher catches up and rejected only if it stalls for this long
+    public static final long DEFAULT_WRITE_STALL_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long FLUSH_ROTATION_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // Compaction is started by itself when tombstones make up this share of disk entries
+    private static final double TOMBSTONES_SHARE_TO_COMPACT = 0.3;
+    private static final long MIN_TOMBSTONES_TO_COMPACT = 1 << 14;
+    private static final int N_IO_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int IO_QUEUE_CAPACITY = 1024;
     private final ServiceConfig config;
+    private final long writeStallTimeoutNanos;
     private final Serializer serializer;
     private final AtomicLong filesCounter = new AtomicLong();
+    private final AtomicLong lastOrdinal = new AtomicLong();
 
-    private final MemoryStorage memoryStorage = new MemoryStorage(N_MEMORY_SSTABLES);
+    private final MemoryStorage memoryStorage = new MemoryStorage(N_FLUSH_SSTABLES);
     private final MappedFileDiskSSTableStorage diskStorage;
     private final AtomicBoolean wasCompacted = new AtomicBoolean(true);
-    private final ExecutorService service = Executors.newCachedThreadPool();
+    // The only flusher: memtables reach the disk in the order they were sealed
+    private final ExecutorService flushService = Executors.newSingleThreadExecutor();
+    private final ExecutorService compactService = Executors.newSingleThreadExecutor();
+    // Async operations may touch cold mappings or wait for a memtable rotation, so they don't run on callers' threads
+    private final ExecutorService ioService = new ThreadPoolExecutor(N_IO_THREADS, N_IO_THREADS,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(IO_QUEUE_CAPACITY));
     private final Runnable flushRunnable;
     private final Runnable compactRunnable;
 
-    private final AtomicLong curBytesForEntries = new AtomicLong();
-
     public LSMDao(ServiceConfig config) throws IOException {
+        this(config, DEFAULT_WRITE_STALL_TIMEOUT_NANOS);
+    }
+
+    /**
+     * writeStallTimeoutNanos bounds how long a write may wait for the flusher when memtables are full.
+     */
+    public LSMDao(ServiceConfig config, long writeStallTimeoutNanos) throws IOException {
         try {
             this.config = config;
-            this.serializer = new Serializer(this.wasCompacted);
-            this.diskStorage = new MappedFileDiskSSTableStorage(config, this.serializer, this.filesCounter);
+            this.writeStallTimeoutNanos = writeStallTimeoutNanos;
+            this.serializer = new Serializer();
+            List<Long> priorities = null;
             if (Files.exists(config.workingDir())) {
-                Files.walkFileTree(
-                        config.workingDir(),
-                        new ConfigVisitor(this.config, this.serializer, this.filesCounter)
-                );
+                CompactionUtils.recover(config, this.filesCounter);
+                priorities = ManifestUtils.read(config);
             } else {
                 Files.createDirectory(config.workingDir());
             }
+            boolean scanned = priorities == null;
+            if (scanned) {
+                // No manifest or it is stale: scan, repair and validate the whole folder
+                ConfigVisitor configVisitor = new ConfigVisitor(this.serializer, this.filesCounter);
+                Files.walkFileTree(config.workingDir(), configVisitor);
+                priorities = configVisitor.priorities();
+            } else {
+                ManifestUtils.deleteUnlisted(config, priorities);
+                this.filesCounter.set(2L * priorities.size());
+            }
+            for (long priority : priorities) {
+                this.lastOrdinal.accumulateAndGet(priority, Math::max);
+            }
+            this.wasCompacted.set(priorities.isEmpty());
+            this.diskStorage = new MappedFileDiskSSTableStorage(config, this.serializer, priorities);
+            if (scanned) {
+                this.diskStorage.writeManifest();
+            }
 
-            this.flushRunnable
-                    = new FlushRunnable(this.config, this.serializer, this.memoryStorage, this.filesCounter);
+            this.flushRunnable = new FlushRunnable(this.config, this.serializer, this.memoryStorage,
+                    this.diskStorage, this.filesCounter, this.lastOrdinal, this.wasCompacted,
+                    this::compactIfTombstoneHeavy);
             this.compactRunnable
                     = new CompactRunnable(this.config, this.serializer, this.diskStorage, this.wasCompacted,
                     this.filesCounter);
@@ -68,59 +119,84 @@ public class LSMDao implements Dao<ByteBuffer, TypedEntry> {
 
     @Override
     public TypedEntry get(ByteBuffer key) throws IOException {
-        try {
-            TypedEntry res = this.memoryStorage.get(key);
-            if (res == null) {
-                res = this.diskStorage.get(key);
-            }
-            return res == null || res.isTombstone() ? null : res;
-        } catch (ReflectiveOperationException ex) {
-            throw new RuntimeException(ex);
+        TypedEntry res = this.memoryStorage.get(key);
+        if (res == null) {
+            res = this.diskStorage.get(key);
         }
+        return res == null || res.isTombstone() ? null : res;
+    }
+
+    /**
+     * Looks the key up on the dao's I/O pool.
+     * Throws RejectedExecutionException if the pool is overloaded or the dao is closed.
+     */
+    public CompletableFuture<TypedEntry> getAsync(ByteBuffer key) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return get(key);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, this.ioService);
     }
 
     @Override
     public Iterator<TypedEntry> get(ByteBuffer from, ByteBuffer to) throws IOException {
+        // Memory is taken first: a memtable flushed meanwhile is then seen twice rather than missed
+        List<Iterator<TypedEntry>> memoryIterators = this.memoryStorage.get(from, to);
+        DiskSSTableVersion version = this.diskStorage.pin();
         try {
-            return new MergeIterator(this.memoryStorage.get(from, to), this.diskStorage.get(from, to));
+            return new PinnedIterator(
+                    new MergeIterator(memoryIterators, this.diskStorage.get(version, from, to)), version);
         } catch (ReflectiveOperationException ex) {
+            version.release();
             throw new RuntimeException(ex);
         }
     }
 
+    /**
+     * Blocks while the memtable is full and the flush queue is busy, so writers are slowed down to the flusher's pace.
+     * Throws RejectedExecutionException if the flusher has stalled for longer than the write stall timeout:
+     * the write is not applied, the service answers 503 and the client may retry.
+     */
     @Override
     public void upsert(TypedEntry entry) {
-        try {
-            if (this.curBytesForEntries.get() >= FLUSH_TRESHOLD_BYTES) {
-                this.flush();
-            }
-
-            if (this.memoryStorage.writeSSTables().isEmpty()) {
-                throw new RuntimeException("Very large number of upserting");
-            }
-
-            this.memoryStorage.writeSSTables().peek().put(entry.key(), entry);
-            this.curBytesForEntries.addAndGet(DiskSSTable.sizeOf(entry));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (this.memoryStorage.upsert(entry, FLUSH_TRESHOLD_BYTES, this.writeStallTimeoutNanos)) {
+            this.flushService.submit(this.flushRunnable);
         }
     }
 
+    /**
+     * Upserts the entry on the dao's I/O pool: the write may have to wait until the filled memtable is queued.
+     * Throws RejectedExecutionException if the pool is overloaded or the dao is closed,
+     * the returned future fails with it if the memtable is full (see upsert).
+     */
+    public CompletableFuture<Void> upsertAsync(TypedEntry entry) {
+        return CompletableFuture.runAsync(() -> upsert(entry), this.ioService);
+    }
+
     @Override
     public void flush() throws IOException {
-        if (this.memoryStorage.writeSSTables().isEmpty() || this.memoryStorage.writeSSTables().peek().isEmpty()) {
-            return;
+        if (this.memoryStorage.rotate(FLUSH_ROTATION_TIMEOUT_NANOS)) {
+            this.flushService.submit(this.flushRunnable);
         }
-        this.service.submit(this.flushRunnable);
-        this.curBytesForEntries.set(0);
     }
 
     @Override
     public synchronized void close() throws IOException {
         try {
-            this.flush();
-            service.shutdown();
-            if (!service.awaitTermination(5, TimeUnit.MINUTES)) {
+            // Async writes accepted before closing reach the memtable that is flushed below
+            this.ioService.shutdown();
+            if (!this.ioService.awaitTermination(5, TimeUnit.MINUTES)) {
+                throw new RuntimeException("Very large number of tasks, impossible to close Dao");
+            }
+            if (this.memoryStorage.rotate(TimeUnit.MINUTES.toNanos(5))) {
+                this.flushService.submit(this.flushRunnable);
+            }
+            this.flushService.shutdown();
+            this.compactService.shutdown();
+            if (!this.flushService.awaitTermination(5, TimeUnit.MINUTES)
+                    || !this.compactService.awaitTermination(5, TimeUnit.MINUTES)) {
                 throw new RuntimeException("Very large number of tasks, impossible to close Dao");
             }
 
@@ -128,9 +204,7 @@ public class LSMDao implements Dao<ByteBuffer, TypedEntry> {
                 throw new IllegalStateException("Resources weren't released");
             }
 
-            this.memoryStorage.clear();
             this.diskStorage.close();
-            this.diskStorage.clear();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
@@ -141,32 +215,106 @@ public class LSMDao implements Dao<ByteBuffer, TypedEntry> {
         if (this.wasCompacted.get()) {
             return;
         }
-        this.service.submit(this.compactRunnable);
+        scheduleCompaction();
+    }
+
+    // Called by the flusher, so it mustn't take the dao's monitor: close() holds it while waiting for flushes
+    private void compactIfTombstoneHeavy() {
+        long entries = 0;
+        long tombstones = 0;
+        DiskSSTableVersion version = this.diskStorage.pin();
+        try {
+            for (MappedFileDiskSSTable table : version.tables()) {
+                MappedPairedFiles mappedPairedFiles = table.getValue();
+                entries += mappedPairedFiles.size();
+                if (mappedPairedFiles.meta().tombstonesKnown()) {
+                    tombstones += mappedPairedFiles.meta().tombstones();
+                }
+            }
+        } finally {
+            version.release();
+        }
+        if (tombstones >= MIN_TOMBSTONES_TO_COMPACT && tombstones >= entries * TOMBSTONES_SHARE_TO_COMPACT) {
+            scheduleCompaction();
+        }
+    }
+
+    private void scheduleCompaction() {
+        try {
+            this.compactService.submit(this.compactRunnable);
+        } catch (RejectedExecutionException e) {
+            // Dao is being closed
+        }
     }
 
+    /*
+     * Writers put entries into the active memtable. The writer which fills it up seals it,
+     * puts it into the bounded queue of memtables to be flushed and installs a new active one.
+     * Writers coming meanwhile wait for the new memtable: when the queue is full
+     * (the flusher doesn't keep up) the sealing writer waits for a free slot up to the write stall timeout,
+     * then gives up and unseals the memtable. Its entry is kept, but the memtable stays over the threshold:
+     * every next writer tries to queue it before writing and is rejected if the queue is still full,
+     * so the memtable doesn't grow without bound.
+     * A sealed memtable stays visible to readers: it enters the queue before it leaves the active pointer
+     * and leaves the queue only when its sstable is published.
+     */
     public static final class MemoryStorage {
 
-        private final MemorySSTableStorage memoryWriteSSTables;
-        private final MemorySSTableStorage memoryFlushSSTables;
+        private static final long ROTATION_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
 
-        public MemoryStorage(int size) {
-            this.memoryWriteSSTables = new MemorySSTableStorage(size);
-            this.memoryFlushSSTables = new MemorySSTableStorage(size);
-            for (int i = 0; i < size; ++i) {
-                this.memoryWriteSSTables.add(new MemorySSTable());
-            }
-        }
+        private final AtomicReference<MemorySSTable> activeSSTable = new AtomicReference<>(new MemorySSTable());
+        private final MemorySSTableStorage memoryFlushSSTables;
 
-        public MemorySSTableStorage writeSSTables() {
-            return this.memoryWriteSSTables;
+        public MemoryStorage(int nFlushSSTables) {
+            this.memoryFlushSSTables = new MemorySSTableStorage(nFlushSSTables);
         }
 
         public MemorySSTableStorage flushSSTables() {
             return this.memoryFlushSSTables;
         }
 
+        /**
+         * Returns true if a memtable (the one the entry has filled or an earlier full one) was queued for flush.
+         * Throws RejectedExecutionException if the active memtable is full and can't be queued.
+         */
+        public boolean upsert(TypedEntry entry, long flushThresholdBytes, long timeoutNanos) {
+            boolean queued = false;
+            while (true) {
+                MemorySSTable memorySSTable = this.activeSSTable.get();
+                if (memorySSTable.byteSize() >= flushThresholdBytes && memorySSTable.seal()) {
+                    // A previous rotation has timed out
+                    if (!rotate(memorySSTable, timeoutNanos)) {
+                        throw new RejectedExecutionException("Memtable is full, flush queue is busy");
+                    }
+                    queued = true;
+                    continue;
+                }
+                if (!memorySSTable.tryAcquire()) {
+                    awaitRotation(memorySSTable);
+                    continue;
+                }
+                long byteSize;
+                try {
+                    memorySSTable.put(entry.key(), entry);
+                    byteSize = memorySSTable.addBytes(DiskSSTable.sizeOf(entry));
+                } finally {
+                    memorySSTable.release();
+                }
+                return byteSize >= flushThresholdBytes && memorySSTable.seal()
+                        && rotate(memorySSTable, timeoutNanos) || queued;
+            }
+        }
+
+        /**
+         * Queues the active memtable for flush unless it is empty, returns true if it was queued.
+         */
+        public boolean rotate(long timeoutNanos) {
+            MemorySSTable memorySSTable = this.activeSSTable.get();
+            return !memorySSTable.isEmpty() && memorySSTable.seal() && rotate(memorySSTable, timeoutNanos);
+        }
+
         public TypedEntry get(ByteBuffer key) {
-            TypedEntry res = this.memoryWriteSSTables.get(key);
+            TypedEntry res = this.activeSSTable.get().get(key);
             if (res == null) {
                 res = this.memoryFlushSSTables.get(key);
             }
@@ -176,23 +324,35 @@ public class LSMDao implements Dao<ByteBuffer, TypedEntry> {
         public List<Iterator<TypedEntry>> get(ByteBuffer from, ByteBuffer to) {
             List<Iterator<TypedEntry>> res = new ArrayList<>();
             ByteBuffer from1 = from == null ? DaoUtils.EMPTY_BYTEBUFFER : from;
-            addMemorySSTables(this.memoryWriteSSTables.iterator(), res, from1, to);
-            addMemorySSTables(this.memoryFlushSSTables.iterator(), res, from1, to);
+            addMemorySSTables(List.of(this.activeSSTable.get()).iterator(), res, from1, to);
+            addMemorySSTables(this.memoryFlushSSTables.descendingIterator(), res, from1, to);
             return res;
         }
 
-        public int size() {
-            return writeSSTables().size() + flushSSTables().size();
+        public boolean empty() {
+            return this.activeSSTable.get().isEmpty() && this.memoryFlushSSTables.isEmpty();
         }
 
-        public boolean empty() {
-            return !this.memoryWriteSSTables.isEmpty() && this.memoryWriteSSTables.peek().isEmpty()
-                    && this.memoryFlushSSTables.isEmpty();
+        private boolean rotate(MemorySSTable sealed, long timeoutNanos) {
+            boolean queued = false;
+            try {
+                queued = this.memoryFlushSSTables.offerLast(sealed, timeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!queued) {
+                // The entry is written anyway, the next writer will try to queue the memtable again
+                sealed.unseal();
+                return false;
+            }
+            this.activeSSTable.set(new MemorySSTable());
+            return true;
         }
 
-        public void clear() {
-            this.memoryWriteSSTables.clear();
-            this.memoryFlushSSTables.clear();
+        private void awaitRotation(MemorySSTable sealed) {
+            while (this.activeSSTable.get() == sealed && sealed.isSealed()) {
+                LockSupport.parkNanos(ROTATION_PARK_NANOS);
+            }
         }
 
         private void addMemorySSTables(Iterator<MemorySSTable> it,
@@ -1,5 +1,7 @@
 package ok.dht.kovalenko.dao;
 
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
 import ok.dht.kovalenko.dao.aliases.MemorySSTable;
 import ok.dht.kovalenko.dao.aliases.TypedBaseEntry;
 import ok.dht.kovalenko.dao.aliases.TypedEntry;
@@ -12,35 +14,37 @@ import ok.dht.kovalenko.dao.utils.MergeIteratorUtils;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public final class Serializer {
 
-    private final AtomicBoolean wasCompacted;
+    private static final int DATA_BUFFER_SIZE = 1 << 20; // 1MB
+    private static final int INDEXES_BUFFER_SIZE = 256 * (1 << 10); // 256KB
 
-    public Serializer(AtomicBoolean wasCompacted)
+    // Direct buffers are reused by subsequent flushes and compactions
+    private final Queue<WriteBuffers> writeBuffers = new ConcurrentLinkedQueue<>();
+
+    public Serializer()
             throws ReflectiveOperationException {
-        this.wasCompacted = wasCompacted;
     }
 
-    public TypedEntry readEntry(MappedPairedFiles mappedFilePair, int indexesPos) {
-        int dataPos = readDataFileOffset(mappedFilePair.indexesFile(), indexesPos);
-        byte tombstone = readByte(mappedFilePair.dataFile(), dataPos++);
-        ByteBuffer key = readByteBuffer(mappedFilePair.dataFile(), dataPos);
-        dataPos += (Integer.BYTES + key.remaining());
-        ByteBuffer value =
-                MergeIteratorUtils.isTombstone(tombstone)
-                        ? null
-                        : readByteBuffer(mappedFilePair.dataFile(), dataPos);
-        return new TypedBaseEntry(key, value);
+    public TypedEntry readEntry(MappedPairedFiles mappedFilePair, long index) {
+        return cursor(mappedFilePair).seek(index).entry();
+    }
+
+    public Cursor cursor(MappedPairedFiles mappedFilePair) {
+        return new Cursor(mappedFilePair);
     }
 
-    public ByteBuffer readKey(MappedPairedFiles mappedFilePair, int indexesPos) {
-        int dataPos = readDataFileOffset(mappedFilePair.indexesFile(), indexesPos);
+    public ByteBuffer readKey(MappedPairedFiles mappedFilePair, long index) {
+        long dataPos = readDataFileOffset(mappedFilePair, index);
         return readByteBuffer(mappedFilePair.dataFile(), dataPos + 1); // skip tombstone flag
     }
 
@@ -53,31 +57,43 @@ public final class Serializer {
         Path dataFilePath = pairedFiles.dataFile();
         Path indexesFilePath = pairedFiles.indexesFile();
 
-        try (RandomAccessFile dataFile = new RandomAccessFile(dataFilePath.toString(), "rw");
-             RandomAccessFile indexesFile = new RandomAccessFile(indexesFilePath.toString(), "rw")) {
-            byte hasTombstones = FileMeta.HAS_NOT_TOMBSTONES;
-            writeMeta(new FileMeta(FileMeta.INCOMPLETELY_WRITTEN, FileMeta.HAS_NOT_TOMBSTONES), dataFile);
+        WriteBuffers buffers = acquireWriteBuffers();
+        try (FileChannel dataFile = FileChannel.open(dataFilePath, StandardOpenOption.WRITE);
+             FileChannel indexesFile = FileChannel.open(indexesFilePath, StandardOpenOption.WRITE)) {
+            ByteBuffer dataBuffer = buffers.data().clear();
+            ByteBuffer indexesBuffer = buffers.indexes().clear();
+            long tombstones = 0;
+            writeMeta(new FileMeta(FileMeta.INCOMPLETELY_WRITTEN, tombstones), dataBuffer);
 
-            int curOffset = (int) dataFile.getFilePointer();
-            int bbSize = 0;
-            ByteBuffer offset = ByteBuffer.allocate(FileUtils.INDEX_SIZE);
+            long curOffset = FileMeta.size();
             TypedEntry curEntry;
             while (data.hasNext()) {
-                curOffset += bbSize;
-                writeOffset(curOffset, offset, indexesFile);
+                if (!indexesBuffer.hasRemaining()) {
+                    drain(indexesBuffer, indexesFile);
+                }
+                writeOffset(curOffset, indexesBuffer);
                 curEntry = data.next();
-                hasTombstones = curEntry.isTombstone() ? FileMeta.HAS_TOMBSTONES : FileMeta.HAS_NOT_TOMBSTONES;
-                bbSize = writeEntry(curEntry, dataFile);
+                if (curEntry.isTombstone()) {
+                    ++tombstones;
+                }
+                curOffset += writeEntry(curEntry, dataBuffer, dataFile);
             }
+            drain(dataBuffer, dataFile);
+            drain(indexesBuffer, indexesFile);
+            indexesFile.force(false);
+            dataFile.force(false);
 
-            writeMeta(new FileMeta(FileMeta.COMPLETELY_WRITTEN, hasTombstones), dataFile);
-            if (hasTombstones == FileMeta.HAS_TOMBSTONES) {
-                this.wasCompacted.set(true);
-            }
+            // The meta is rewritten only when the whole data is on disk
+            writeMeta(new FileMeta(FileMeta.COMPLETELY_WRITTEN, tombstones), dataBuffer);
+            dataBuffer.flip();
+            dataFile.write(dataBuffer, 0);
+            dataFile.force(false);
         } catch (Exception ex) {
             Files.delete(dataFilePath);
             Files.delete(indexesFilePath);
             throw new RuntimeException(ex);
+        } finally {
+            this.writeBuffers.offer(buffers);
         }
     }
 
@@ -85,40 +101,90 @@ public final class Serializer {
         try (RandomAccessFile file = new RandomAccessFile(pathToFile.toString(), "r")) {
             byte completelyWritten = file.readByte();
             byte hasTombstones = file.readByte();
-            return new FileMeta(completelyWritten, hasTombstones);
+            byte version = file.length() > FileMeta.size(FileMeta.VERSION_INT_OFFSETS)
+                    ? toVersion(file.readByte())
+                    : FileMeta.VERSION_INT_OFFSETS;
+            return version == FileMeta.VERSION_TOMBSTONES_COUNT
+                    ? new FileMeta(completelyWritten, hasTombstones, version, file.readLong())
+                    : new FileMeta(completelyWritten, hasTombstones, version);
         }
     }
 
-    private void writeMeta(FileMeta meta, RandomAccessFile file) throws IOException {
-        file.seek(0);
-        file.write(meta.completelyWritten());
-        file.write(meta.hasTombstones());
+    public FileMeta meta(MemorySegment dataFile) {
+        byte completelyWritten = readByte(dataFile, 0);
+        byte hasTombstones = readByte(dataFile, 1);
+        byte version = dataFile.byteSize() > FileMeta.size(FileMeta.VERSION_INT_OFFSETS)
+                ? toVersion(readByte(dataFile, 2))
+                : FileMeta.VERSION_INT_OFFSETS;
+        if (version != FileMeta.VERSION_TOMBSTONES_COUNT) {
+            return new FileMeta(completelyWritten, hasTombstones, version);
+        }
+        long tombstonesPos = FileMeta.size(FileMeta.VERSION_LONG_OFFSETS);
+        long tombstones = MemoryAccess.getLongAtOffset(dataFile, tombstonesPos, ByteOrder.BIG_ENDIAN);
+        return new FileMeta(completelyWritten, hasTombstones, version, tombstones);
     }
 
-    private int readDataFileOffset(MappedByteBuffer indexesFile, int indexesPos) {
-        return indexesFile.getInt(indexesPos);
+    private static byte toVersion(byte versionOrTombstone) {
+        return FileMeta.isVersion(versionOrTombstone) ? versionOrTombstone : FileMeta.VERSION_INT_OFFSETS;
     }
 
-    private byte readByte(MappedByteBuffer dataFile, int dataPos) {
-        return dataFile.get(dataPos);
+    private void writeMeta(FileMeta meta, ByteBuffer buffer) {
+        buffer.put(meta.completelyWritten());
+        buffer.put(meta.hasTombstones());
+        buffer.put(meta.version());
+        buffer.putLong(meta.tombstones());
     }
 
-    private ByteBuffer readByteBuffer(MappedByteBuffer dataFile, int dataPos) {
-        int bbSize = dataFile.getInt(dataPos);
-        return dataFile.slice(dataPos + Integer.BYTES, bbSize);
+    private WriteBuffers acquireWriteBuffers() {
+        WriteBuffers buffers = this.writeBuffers.poll();
+        return buffers == null
+                ? new WriteBuffers(ByteBuffer.allocateDirect(DATA_BUFFER_SIZE),
+                ByteBuffer.allocateDirect(INDEXES_BUFFER_SIZE))
+                : buffers;
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void drain(ByteBuffer[] buffers, FileChannel channel) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    private long readDataFileOffset(MappedPairedFiles mappedFilePair, long index) {
+        MemorySegment indexesFile = mappedFilePair.indexesFile();
+        return mappedFilePair.meta().version() == FileMeta.VERSION_INT_OFFSETS
+                ? MemoryAccess.getIntAtOffset(indexesFile, index * FileUtils.LEGACY_INDEX_SIZE, ByteOrder.BIG_ENDIAN)
+                : MemoryAccess.getLongAtOffset(indexesFile, index * FileUtils.INDEX_SIZE, ByteOrder.BIG_ENDIAN);
+    }
+
+    private byte readByte(MemorySegment dataFile, long dataPos) {
+        return MemoryAccess.getByteAtOffset(dataFile, dataPos);
+    }
+
+    private ByteBuffer readByteBuffer(MemorySegment dataFile, long dataPos) {
+        int bbSize = MemoryAccess.getIntAtOffset(dataFile, dataPos, ByteOrder.BIG_ENDIAN);
+        return dataFile.asSlice(dataPos + Integer.BYTES, bbSize).asByteBuffer();
     }
 
     /*
      * Write offsets in format:
-     * ┌─────┐
-     * │ int │
-     * └─────┘
+     * ┌──────┐
+     * │ long │
+     * └──────┘
      */
-    private void writeOffset(int offset, ByteBuffer bbOffset, RandomAccessFile indexesFile) throws IOException {
-        bbOffset.putInt(offset);
-        bbOffset.rewind();
-        indexesFile.getChannel().write(bbOffset);
-        bbOffset.rewind();
+    private void writeOffset(long offset, ByteBuffer indexesBuffer) {
+        indexesBuffer.putLong(offset);
     }
 
     /*
@@ -130,23 +196,116 @@ public final class Serializer {
      * │ value: byte[entry.value().remaining()] │
      * ┴────────────────────────────────────────┘
      */
-    private int writeEntry(TypedEntry entry, RandomAccessFile dataFile) throws IOException {
+    private int writeEntry(TypedEntry entry, ByteBuffer dataBuffer, FileChannel dataFile) throws IOException {
         int bbSize = MemorySSTable.sizeOf(entry);
-        ByteBuffer pair = ByteBuffer.allocate(bbSize);
-        byte tombstone = MergeIteratorUtils.getTombstoneValue(entry);
+        if (bbSize > dataBuffer.remaining()) {
+            drain(dataBuffer, dataFile);
+        }
+        if (bbSize > dataBuffer.capacity()) {
+            writeLargeEntry(entry, dataFile);
+            return bbSize;
+        }
 
-        pair.put(tombstone);
-        pair.putInt(entry.key().remaining());
-        pair.put(entry.key());
+        byte tombstone = MergeIteratorUtils.getTombstoneValue(entry);
+        dataBuffer.put(tombstone);
+        dataBuffer.putInt(entry.key().remaining());
+        dataBuffer.put(entry.key().duplicate());
 
         if (!entry.isTombstone()) {
-            pair.putInt(entry.value().remaining());
-            pair.put(entry.value());
+            dataBuffer.putInt(entry.value().remaining());
+            dataBuffer.put(entry.value().duplicate());
         }
 
-        pair.rewind();
-        dataFile.getChannel().write(pair);
-
         return bbSize;
     }
+
+    // Entries which don't fit into the buffer are gathered from their own buffers without copying
+    private void writeLargeEntry(TypedEntry entry, FileChannel dataFile) throws IOException {
+        ByteBuffer keyHeader = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES);
+        keyHeader.put(MergeIteratorUtils.getTombstoneValue(entry)).putInt(entry.key().remaining()).flip();
+        if (entry.isTombstone()) {
+            drain(new ByteBuffer[]{keyHeader, entry.key().duplicate()}, dataFile);
+            return;
+        }
+        ByteBuffer valueHeader = ByteBuffer.allocate(Integer.BYTES);
+        valueHeader.putInt(entry.value().remaining()).flip();
+        drain(new ByteBuffer[]{keyHeader, entry.key().duplicate(), valueHeader, entry.value().duplicate()}, dataFile);
+    }
+
+    private record WriteBuffers(ByteBuffer data, ByteBuffer indexes) {
+    }
+
+    /**
+     * Flyweight view of an entry in mapped files: keys are compared in place
+     * and buffers are created only for the entry which is actually returned.
+     * Moving to the next entry doesn't touch the indexes-file, entries are laid out one by one.
+     * Isn't thread-safe, every reader uses its own cursor.
+     */
+    public final class Cursor {
+
+        private final MappedPairedFiles mappedFilePair;
+        private final MemorySegment dataFile;
+        private long dataPos; // position of the tombstone flag
+
+        private Cursor(MappedPairedFiles mappedFilePair) {
+            this.mappedFilePair = mappedFilePair;
+            this.dataFile = mappedFilePair.dataFile();
+        }
+
+        public Cursor seek(long index) {
+            this.dataPos = readDataFileOffset(this.mappedFilePair, index);
+            return this;
+        }
+
+        public void advance() {
+            long keyPos = this.dataPos + Byte.BYTES;
+            long valuePos = keyPos + Integer.BYTES + readSize(keyPos);
+            this.dataPos = isTombstone() ? valuePos : valuePos + Integer.BYTES + readSize(valuePos);
+        }
+
+        public boolean isTombstone() {
+            return MergeIteratorUtils.isTombstone(readByte(this.dataFile, this.dataPos));
+        }
+
+        /**
+         * Compares the given key with the key under the cursor the same way as ByteBuffer::compareTo does.
+         */
+        public int compareKey(ByteBuffer key) {
+            long keyPos = this.dataPos + Byte.BYTES;
+            int storedSize = readSize(keyPos);
+            keyPos += Integer.BYTES;
+            int from = key.position();
+            int size = key.remaining();
+            int common = Math.min(size, storedSize);
+
+            int i = 0;
+            // Equal prefix is skipped by words, the mismatching word is compared byte by byte below
+            for (; i + Long.BYTES <= common; i += Long.BYTES) {
+                long stored = MemoryAccess.getLongAtOffset(this.dataFile, keyPos + i, key.order());
+                if (key.getLong(from + i) != stored) {
+                    break;
+                }
+            }
+            for (; i < common; ++i) {
+                int compare = Byte.compare(key.get(from + i), readByte(this.dataFile, keyPos + i));
+                if (compare != 0) {
+                    return compare;
+                }
+            }
+            return size - storedSize;
+        }
+
+        public TypedEntry entry() {
+            long keyPos = this.dataPos + Byte.BYTES;
+            ByteBuffer key = readByteBuffer(this.dataFile, keyPos);
+            ByteBuffer value = isTombstone()
+                    ? null
+                    : readByteBuffer(this.dataFile, keyPos + Integer.BYTES + key.remaining());
+            return new TypedBaseEntry(key, value);
+        }
+
+        private int readSize(long pos) {
+            return MemoryAccess.getIntAtOffset(this.dataFile, pos, ByteOrder.BIG_ENDIAN);
+        }
+    }
 }
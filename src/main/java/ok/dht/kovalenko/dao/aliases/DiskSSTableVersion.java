@@ -0,0 +1,49 @@
+package ok.dht.kovalenko.dao.aliases;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Immutable set of disk tables (newest first) pinned by readers.
+ * The storage holds one pin while the version is current, every reader takes its own one.
+ * When the last pin is released the version releases its tables,
+ * and a table is unmapped when no version contains it anymore.
+ */
+public final class DiskSSTableVersion {
+
+    private final List<MappedFileDiskSSTable> tables;
+    private final AtomicInteger pins = new AtomicInteger(1);
+
+    public DiskSSTableVersion(List<MappedFileDiskSSTable> tables) {
+        this.tables = tables;
+        for (MappedFileDiskSSTable table : tables) {
+            table.retain();
+        }
+    }
+
+    public List<MappedFileDiskSSTable> tables() {
+        return this.tables;
+    }
+
+    /**
+     * Fails if the version has been released completely, then the current one has to be taken again.
+     */
+    public boolean tryAcquire() {
+        int cur;
+        do {
+            cur = this.pins.get();
+            if (cur == 0) {
+                return false;
+            }
+        } while (!this.pins.compareAndSet(cur, cur + 1));
+        return true;
+    }
+
+    public void release() {
+        if (this.pins.decrementAndGet() == 0) {
+            for (MappedFileDiskSSTable table : this.tables) {
+                table.release();
+            }
+        }
+    }
+}
@@ -4,45 +4,100 @@ import ok.dht.kovalenko.dao.Serializer;
 import ok.dht.kovalenko.dao.dto.ByteBufferRange;
 import ok.dht.kovalenko.dao.dto.MappedPairedFiles;
 import ok.dht.kovalenko.dao.utils.DaoUtils;
-import ok.dht.kovalenko.dao.utils.FileUtils;
 
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MappedFileDiskSSTable
         extends DiskSSTable<MappedPairedFiles> {
 
     private final Serializer serializer;
+    private final CompletableFuture<MappedPairedFiles> loading;
+    // Number of versions containing the table
+    private final AtomicInteger refs = new AtomicInteger();
 
     public MappedFileDiskSSTable(long key, MappedPairedFiles value, Serializer serializer) {
-        super(key, value);
+        this(key, CompletableFuture.completedFuture(value), serializer);
+    }
+
+    /**
+     * Table whose files are still being validated and mapped: the first access waits for it.
+     */
+    public MappedFileDiskSSTable(long key, CompletableFuture<MappedPairedFiles> loading, Serializer serializer) {
+        super(key, null);
         this.serializer = serializer;
+        this.loading = loading;
+    }
+
+    /**
+     * Waits for the table to be loaded; if loading has failed, the failure is thrown to every access.
+     */
+    @Override
+    public MappedPairedFiles getValue() {
+        try {
+            return this.loading.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException uncheckedIOException) {
+                throw uncheckedIOException;
+            }
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+
+    public void retain() {
+        this.refs.incrementAndGet();
+    }
+
+    /**
+     * Unmaps the files when the last version containing the table is released.
+     */
+    public void release() {
+        if (this.refs.decrementAndGet() == 0) {
+            close();
+        }
+    }
+
+    public void close() {
+        // A table which has failed to load has nothing mapped
+        MappedPairedFiles mappedPairedFiles = this.loading.exceptionally(ex -> null).join();
+        if (mappedPairedFiles != null) {
+            mappedPairedFiles.close();
+        }
     }
 
     public TypedEntry get(ByteBuffer key) {
-        ByteBufferRange range = this.value.range();
+        MappedPairedFiles mappedPairedFiles = getValue();
+        ByteBufferRange range = mappedPairedFiles.range();
         if (DaoUtils.byteBufferComparator.lessThan(key, range.from())
                 || DaoUtils.byteBufferComparator.greaterThan(key, range.to())) {
             return null;
         }
-        TypedEntry res = null;
-        int greaterOrEqualEntryIndex = entryIndex(this.value, key);
-        if (greaterOrEqualEntryIndex >= 0) {
-            res = entryAt(this.value, greaterOrEqualEntryIndex);
-        }
-        return res;
+        Serializer.Cursor cursor = serializer.cursor(mappedPairedFiles);
+        // Only the hit is materialized, the cursor stays on it after the search
+        return entryIndex(cursor, mappedPairedFiles.size(), key) >= 0 ? cursor.entry() : null;
     }
 
     public TypedIterator get(ByteBuffer from, ByteBuffer to) {
-        ByteBufferRange range = this.value.range();
+        MappedPairedFiles mappedPairedFiles = getValue();
+        ByteBufferRange range = mappedPairedFiles.range();
         if (DaoUtils.byteBufferComparator.lessThan(range.to(), from)
                 || DaoUtils.byteBufferComparator.greaterThan(range.from(), to)) {
             return null;
         }
-        int fromPos = greaterOrEqualEntryIndex(this.value, from);
-        int toPos = greaterOrEqualEntryIndex(this.value, to);
-        MappedPairedFiles mappedPairedFiles = this.value;
+        Serializer.Cursor cursor = serializer.cursor(mappedPairedFiles);
+        long fromPos = greaterOrEqualEntryIndex(cursor, mappedPairedFiles.size(), from);
+        long toPos = greaterOrEqualEntryIndex(cursor, mappedPairedFiles.size(), to);
+        if (fromPos < toPos) {
+            cursor.seek(fromPos);
+        }
         return new TypedIterator() {
-            int curPos = fromPos;
+            long curPos = fromPos;
 
             @Override
             public boolean hasNext() {
@@ -51,22 +106,27 @@ public class MappedFileDiskSSTable
 
             @Override
             public TypedEntry next() {
-                return entryAt(mappedPairedFiles, curPos++);
+                // Entries are handed out, so they are materialized; the cursor is shared by the whole scan
+                TypedEntry entry = cursor.entry();
+                if (++curPos < toPos) {
+                    cursor.advance();
+                }
+                return entry;
             }
         };
     }
 
-    private int entryIndex(MappedPairedFiles mappedPairedFiles, ByteBuffer key) {
-        int a = 0;
-        int b = mappedPairedFiles.indexesLimit() / FileUtils.INDEX_SIZE;
+    private long entryIndex(Serializer.Cursor cursor, long size, ByteBuffer key) {
+        long a = 0;
+        long b = size;
         if (key == null) {
             return b;
         }
 
+        key.rewind();
         while (a < b) {
-            int c = (b + a) / 2;
-            ByteBuffer keyForCompare = serializer.readKey(mappedPairedFiles, c * FileUtils.INDEX_SIZE);
-            int compare = key.rewind().compareTo(keyForCompare.rewind());
+            long c = (b + a) >>> 1;
+            int compare = cursor.seek(c).compareKey(key);
             if (compare > 0) {
                 a = c + 1;
             } else if (compare == 0) {
@@ -79,15 +139,11 @@ public class MappedFileDiskSSTable
         return ~a;
     }
 
-    private int greaterOrEqualEntryIndex(MappedPairedFiles mappedPairedFiles, ByteBuffer key) {
-        int index = entryIndex(mappedPairedFiles, key);
+    private long greaterOrEqualEntryIndex(Serializer.Cursor cursor, long size, ByteBuffer key) {
+        long index = entryIndex(cursor, size, key);
         if (index < 0) {
             return ~index;
         }
         return index;
     }
-
-    private TypedEntry entryAt(MappedPairedFiles mappedPairedFiles, int pos) {
-        return serializer.readEntry(mappedPairedFiles, FileUtils.INDEX_SIZE * pos);
-    }
 }
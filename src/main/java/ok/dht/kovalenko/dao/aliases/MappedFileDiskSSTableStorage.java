@@ -1,112 +1,229 @@
 package ok.dht.kovalenko.dao.aliases;
 
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
 import ok.dht.ServiceConfig;
 import ok.dht.kovalenko.dao.Serializer;
-import ok.dht.kovalenko.dao.dto.FileMeta;
 import ok.dht.kovalenko.dao.dto.MappedPairedFiles;
+import ok.dht.kovalenko.dao.dto.PairedFiles;
 import ok.dht.kovalenko.dao.utils.DaoUtils;
 import ok.dht.kovalenko.dao.utils.FileUtils;
+import ok.dht.kovalenko.dao.utils.ManifestUtils;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/*
+ * Tables are kept in an immutable version (see DiskSSTableVersion) which is replaced as a whole:
+ * a flush publishes a version with one more table, a compaction publishes a version without the merged ones.
+ * Readers pin the version they work with, so its tables are unmapped only after the last reader has finished;
+ * entries handed out to readers are copied to the heap, they don't depend on the mapping.
+ * Files of merged tables are deleted at compaction commit: mapped data stays readable until it is unmapped,
+ * while keeping the files would let them come back after a crash.
+ * Every published version is recorded in the manifest (see ManifestUtils).
+ */
 public class MappedFileDiskSSTableStorage
-        extends DiskSSTableStorage<MappedFileDiskSSTable>
         implements Closeable {
 
-    private static final Method unmap;
-    private static final Object unsafe;
-
-    static {
-        try {
-            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
-            unmap = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
-            unmap.setAccessible(true);
-            Field theUnsafeField = unsafeClass.getDeclaredField("theUnsafe");
-            theUnsafeField.setAccessible(true);
-            unsafe = theUnsafeField.get(null); // 'sun.misc.Unsafe' instance
-        } catch (ReflectiveOperationException ex) {
-            throw new RuntimeException(ex);
-        }
-    }
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final Comparator<MappedFileDiskSSTable> NEWEST_FIRST
+            = Comparator.comparing(MappedFileDiskSSTable::getKey).reversed();
+    private static final int MAX_LOADING_THREADS = 8;
 
     private final Serializer serializer;
     private final ServiceConfig config;
-    private final AtomicLong filesCounter;
-
-    public MappedFileDiskSSTableStorage(ServiceConfig config, Serializer serializer, AtomicLong filesCounter) {
-        super();
+    private final AtomicReference<DiskSSTableVersion> current
+            = new AtomicReference<>(new DiskSSTableVersion(List.of()));
+    // Versions are published one by one, the manifest is written in the same order
+    private final Object publishLock = new Object();
+
+    /**
+     * Publishes the tables at once and validates and maps their files in background,
+     * so reads may start before all of them are loaded: a read waits only for the tables it touches,
+     * and a table which fails to load fails only the reads touching it.
+     */
+    public MappedFileDiskSSTableStorage(ServiceConfig config, Serializer serializer, Collection<Long> priorities) {
         this.config = config;
         this.serializer = serializer;
-        this.filesCounter = filesCounter;
+        List<Long> newestFirst = new ArrayList<>(priorities);
+        newestFirst.sort(Comparator.reverseOrder());
+
+        int nThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_LOADING_THREADS));
+        ExecutorService loadingService = Executors.newFixedThreadPool(nThreads);
+        List<MappedFileDiskSSTable> loaded = new ArrayList<>(newestFirst.size());
+        List<CompletableFuture<MappedPairedFiles>> loadings = new ArrayList<>(newestFirst.size());
+        // The newest tables are the most likely to be read, so they are submitted first
+        for (long priority : newestFirst) {
+            CompletableFuture<MappedPairedFiles> loading = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return mapForRead(priority).getValue();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, loadingService);
+            loadings.add(loading);
+            loaded.add(new MappedFileDiskSSTable(priority, loading, serializer));
+        }
+        CompletableFuture.allOf(loadings.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((ignored, ex) -> loadingService.shutdown());
+        this.current.set(new DiskSSTableVersion(List.copyOf(loaded)));
     }
 
+    /**
+     * Tables still pinned by readers are unmapped when they are released.
+     */
     @Override
     public void close() throws IOException {
-        try {
-            unmapFiles();
-        } catch (ReflectiveOperationException e) {
-            throw new IllegalStateException(e);
+        clear();
+    }
+
+    public void clear() {
+        synchronized (this.publishLock) {
+            this.current.getAndSet(new DiskSSTableVersion(List.of())).release();
         }
     }
 
-    private void unmapFiles() throws ReflectiveOperationException {
-        for (MappedFileDiskSSTable mappedFileDiskSSTable : this.values()) {
-            unmap(mappedFileDiskSSTable.getValue());
+    /**
+     * The caller has to release the returned version.
+     */
+    public DiskSSTableVersion pin() {
+        while (true) {
+            DiskSSTableVersion version = this.current.get();
+            // Fails only if the version has been replaced and released meanwhile
+            if (version.tryAcquire()) {
+                return version;
+            }
         }
     }
 
-    private void mapForRead(long numTablesToMap, Serializer serializer)
-            throws IOException, ReflectiveOperationException {
-        unmapFiles();
-
-        for (long priority = 1; priority <= numTablesToMap; ++priority) {
-            Path dataFile = FileUtils.getFilePath(FileUtils.getDataFilename(priority), this.config);
-            Path indexesFile = FileUtils.getFilePath(FileUtils.getIndexesFilename(priority), this.config);
-
-            try (FileChannel dataChannel = FileChannel.open(dataFile);
-                 FileChannel indexesChannel = FileChannel.open(indexesFile)) {
-                MappedByteBuffer mappedDataFile =
-                        dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, dataChannel.size());
-                MappedByteBuffer mappedIndexesFile =
-                        indexesChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexesChannel.size());
-                mappedDataFile.position(FileMeta.size());
-                this.put(
-                        priority,
-                        new MappedFileDiskSSTable(priority,
-                                new MappedPairedFiles(mappedDataFile, mappedIndexesFile, serializer), serializer)
-                );
+    /**
+     * Flush-completion hook: maps the freshly written files and publishes them.
+     */
+    public void add(PairedFiles pairedFiles) throws IOException {
+        MappedFileDiskSSTable table = mapForRead(FileUtils.getFileNumber(pairedFiles.dataFile()));
+        publish(current -> {
+            List<MappedFileDiskSSTable> updated = new ArrayList<>(current.size() + 1);
+            updated.addAll(current);
+            updated.add(table);
+            return updated;
+        });
+    }
+
+    /**
+     * Compaction hook: commits the compaction and publishes the compacted tables instead of the merged ones.
+     * Tables flushed while the compaction was running stay in place.
+     * The commit renames and deletes files, so it runs under the publish lock:
+     * a concurrent flush must not write the manifest of a folder in the middle of the change.
+     */
+    public void replace(Collection<MappedFileDiskSSTable> merged, Collection<Long> compactedPriorities,
+                        Commit commit) throws IOException {
+        synchronized (this.publishLock) {
+            commit.run();
+            List<MappedFileDiskSSTable> compacted = new ArrayList<>(compactedPriorities.size());
+            for (long priority : compactedPriorities) {
+                compacted.add(mapForRead(priority));
             }
+            publish(current -> {
+                List<MappedFileDiskSSTable> updated = new ArrayList<>(current.size() + compacted.size());
+                for (MappedFileDiskSSTable table : current) {
+                    if (!merged.contains(table)) {
+                        updated.add(table);
+                    }
+                }
+                updated.addAll(compacted);
+                return updated;
+            });
         }
     }
 
-    public TypedEntry get(ByteBuffer key) throws IOException, ReflectiveOperationException {
-        updateTables();
-        TypedEntry res = null;
-        for (MappedFileDiskSSTable diskSSTable : this.descendingMap().values()) {
-            if ((res = diskSSTable.get(key)) != null) {
-                return res;
+    public void writeManifest() throws IOException {
+        synchronized (this.publishLock) {
+            List<Long> priorities = new ArrayList<>();
+            for (MappedFileDiskSSTable table : this.current.get().tables()) {
+                priorities.add(table.getKey());
             }
+            ManifestUtils.write(this.config, priorities);
+        }
+    }
+
+    private void publish(UnaryOperator<List<MappedFileDiskSSTable>> update) throws IOException {
+        synchronized (this.publishLock) {
+            DiskSSTableVersion previous = this.current.get();
+            List<MappedFileDiskSSTable> updated = update.apply(previous.tables());
+            updated.sort(NEWEST_FIRST);
+            // The new version retains the shared tables before the previous one lets them go
+            this.current.set(new DiskSSTableVersion(List.copyOf(updated)));
+            previous.release();
+            writeManifest();
         }
-        return res;
     }
 
-    public List<Iterator<TypedEntry>> get(ByteBuffer from, ByteBuffer to)
-            throws ReflectiveOperationException, IOException {
-        updateTables();
+    private MappedFileDiskSSTable mapForRead(long priority) throws IOException {
+        Path dataFile = FileUtils.getFilePath(FileUtils.getDataFilename(priority), this.config);
+        Path indexesFile = FileUtils.getFilePath(FileUtils.getIndexesFilename(priority), this.config);
+
+        // Segments are not limited by 2GB, unlike MappedByteBuffer
+        ResourceScope scope = ResourceScope.newSharedScope(CLEANER);
+        try {
+            MemorySegment mappedDataFile =
+                    MemorySegment.mapFile(dataFile, 0, Files.size(dataFile), FileChannel.MapMode.READ_ONLY, scope);
+            MemorySegment mappedIndexesFile =
+                    MemorySegment.mapFile(indexesFile, 0, Files.size(indexesFile), FileChannel.MapMode.READ_ONLY,
+                            scope);
+            if (this.serializer.meta(mappedDataFile).notWritten()) {
+                throw new IllegalStateException("SSTable was written incompletely: " + dataFile);
+            }
+            return new MappedFileDiskSSTable(priority,
+                    new MappedPairedFiles(scope, mappedDataFile, mappedIndexesFile, serializer), serializer);
+        } catch (IOException | RuntimeException e) {
+            scope.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The search compares keys in place, only the hit is copied out of the mapped files:
+     * it is used after the version is released.
+     */
+    public TypedEntry get(ByteBuffer key) {
+        DiskSSTableVersion version = pin();
+        try {
+            for (MappedFileDiskSSTable diskSSTable : version.tables()) {
+                TypedEntry res = diskSSTable.get(key);
+                if (res != null) {
+                    return new TypedBaseEntry(DaoUtils.copyOf(res.key()),
+                            res.isTombstone() ? null : DaoUtils.copyOf(res.value()));
+                }
+            }
+            return null;
+        } finally {
+            version.release();
+        }
+    }
+
+    /**
+     * Iterators are valid while the version is pinned.
+     */
+    public List<Iterator<TypedEntry>> get(DiskSSTableVersion version, ByteBuffer from, ByteBuffer to) {
         List<Iterator<TypedEntry>> res = new ArrayList<>();
         ByteBuffer from1 = from == null ? DaoUtils.EMPTY_BYTEBUFFER : from;
-        for (MappedFileDiskSSTable diskSSTable : this.descendingMap().values()) {
+        for (MappedFileDiskSSTable diskSSTable : version.tables()) {
             Iterator<TypedEntry> rangeIt = diskSSTable.get(from1, to);
             if (rangeIt == null) {
                 continue;
@@ -116,19 +233,8 @@ public class MappedFileDiskSSTableStorage
         return res;
     }
 
-    private void unmap(MappedPairedFiles mappedPairedFiles) throws ReflectiveOperationException {
-        unmap(mappedPairedFiles.dataFile());
-        unmap(mappedPairedFiles.indexesFile());
-    }
-
-    private void unmap(MappedByteBuffer buffer) throws ReflectiveOperationException {
-        unmap.invoke(unsafe, buffer);
-    }
-
-    private void updateTables() throws ReflectiveOperationException, IOException {
-        long numFiles = filesCounter.get() / 2;
-        if (this.get(numFiles) == null) {
-            mapForRead(numFiles, serializer);
-        }
+    @FunctionalInterface
+    public interface Commit {
+        void run() throws IOException;
     }
 }
@@ -3,10 +3,18 @@ package ok.dht.kovalenko.dao.aliases;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MemorySSTable
         extends ConcurrentSkipListMap<ByteBuffer, TypedEntry> {
 
+    private static final int SEALED = Integer.MIN_VALUE;
+
+    // Number of writers in progress, the sign bit is set when the table is sealed
+    private final AtomicInteger state = new AtomicInteger();
+    private final AtomicLong byteSize = new AtomicLong();
+
     // See the key-value pairs' writing format
     public static int sizeOf(TypedEntry entry) {
         int size = 1 + Integer.BYTES + entry.key().rewind().remaining();
@@ -16,6 +24,66 @@ public class MemorySSTable
         return size;
     }
 
+    /**
+     * Pins the table for writing, fails if it is sealed.
+     */
+    public boolean tryAcquire() {
+        int cur;
+        do {
+            cur = this.state.get();
+            if ((cur & SEALED) != 0) {
+                return false;
+            }
+        } while (!this.state.compareAndSet(cur, cur + 1));
+        return true;
+    }
+
+    public void release() {
+        this.state.decrementAndGet();
+    }
+
+    /**
+     * Forbids further writes, returns true only for the caller that has sealed the table.
+     */
+    public boolean seal() {
+        int cur;
+        do {
+            cur = this.state.get();
+            if ((cur & SEALED) != 0) {
+                return false;
+            }
+        } while (!this.state.compareAndSet(cur, cur | SEALED));
+        return true;
+    }
+
+    /**
+     * Allows writes again when the sealed table can't be queued for flush.
+     */
+    public void unseal() {
+        this.state.getAndUpdate(cur -> cur & ~SEALED);
+    }
+
+    public boolean isSealed() {
+        return (this.state.get() & SEALED) != 0;
+    }
+
+    /**
+     * Waits for writers which have pinned the table before it was sealed.
+     */
+    public void awaitWriters() {
+        while (this.state.get() != SEALED) {
+            Thread.onSpinWait();
+        }
+    }
+
+    public long addBytes(long bytes) {
+        return this.byteSize.addAndGet(bytes);
+    }
+
+    public long byteSize() {
+        return this.byteSize.get();
+    }
+
     public Iterator<TypedEntry> get(ByteBuffer from, ByteBuffer to) {
         Iterator<TypedEntry> rangeIt;
         if (to == null) {
@@ -1,14 +1,52 @@
 package ok.dht.kovalenko.dao.dto;
 
-public record FileMeta(byte completelyWritten, byte hasTombstones) {
+import ok.dht.kovalenko.dao.utils.FileUtils;
+
+/*
+ * Version 0 has no version byte and stores data offsets as int.
+ * Version 2 appends the version byte to the meta and stores data offsets as long.
+ * Version 3 appends the number of tombstones in the file (earlier versions don't know it).
+ * Version byte never equals a tombstone flag (see MergeIteratorUtils), which is what
+ * version 0 files have at the same position, so the versions can be told apart.
+ */
+public record FileMeta(byte completelyWritten, byte hasTombstones, byte version, long tombstones) {
 
     public static final byte COMPLETELY_WRITTEN = 1;
     public static final byte INCOMPLETELY_WRITTEN = 0;
     public static final byte HAS_TOMBSTONES = 1;
     public static final byte HAS_NOT_TOMBSTONES = 0;
+    public static final byte VERSION_INT_OFFSETS = 0;
+    public static final byte VERSION_LONG_OFFSETS = 2;
+    public static final byte VERSION_TOMBSTONES_COUNT = 3;
+    public static final byte CURRENT_VERSION = VERSION_TOMBSTONES_COUNT;
+    public static final long UNKNOWN_TOMBSTONES = -1;
+
+    public FileMeta(byte completelyWritten, byte hasTombstones, byte version) {
+        this(completelyWritten, hasTombstones, version, UNKNOWN_TOMBSTONES);
+    }
+
+    public FileMeta(byte completelyWritten, long tombstones) {
+        this(completelyWritten, tombstones > 0 ? HAS_TOMBSTONES : HAS_NOT_TOMBSTONES, CURRENT_VERSION, tombstones);
+    }
 
     public static int size() {
-        return Byte.BYTES + Byte.BYTES;
+        return size(CURRENT_VERSION);
+    }
+
+    public static int size(byte version) {
+        return switch (version) {
+            case VERSION_INT_OFFSETS -> Byte.BYTES + Byte.BYTES;
+            case VERSION_LONG_OFFSETS -> Byte.BYTES + Byte.BYTES + Byte.BYTES;
+            default -> Byte.BYTES + Byte.BYTES + Byte.BYTES + Long.BYTES;
+        };
+    }
+
+    public static boolean isVersion(byte versionOrTombstone) {
+        return versionOrTombstone == VERSION_LONG_OFFSETS || versionOrTombstone == VERSION_TOMBSTONES_COUNT;
+    }
+
+    public int indexSize() {
+        return version == VERSION_INT_OFFSETS ? FileUtils.LEGACY_INDEX_SIZE : FileUtils.INDEX_SIZE;
     }
 
     public boolean written() {
@@ -26,4 +64,8 @@ public record FileMeta(byte completelyWritten, byte hasTombstones) {
     public boolean notTombstoned() {
         return !tombstoned();
     }
+
+    public boolean tombstonesKnown() {
+        return tombstones != UNKNOWN_TOMBSTONES;
+    }
 }
@@ -1,43 +1,52 @@
 package ok.dht.kovalenko.dao.dto;
 
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
 import ok.dht.kovalenko.dao.Serializer;
-import ok.dht.kovalenko.dao.utils.FileUtils;
 
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 
 public class MappedPairedFiles {
 
-    private final MappedByteBuffer dataFile;
-    private final MappedByteBuffer indexesFile;
+    private final ResourceScope scope;
+    private final MemorySegment dataFile;
+    private final MemorySegment indexesFile;
+    private final FileMeta meta;
     private final ByteBufferRange range;
 
-    public MappedPairedFiles(MappedByteBuffer dataFile, MappedByteBuffer indexesFile, Serializer serializer) {
+    public MappedPairedFiles(ResourceScope scope, MemorySegment dataFile, MemorySegment indexesFile,
+                             Serializer serializer) {
+        this.scope = scope;
         this.dataFile = dataFile;
         this.indexesFile = indexesFile;
+        this.meta = serializer.meta(dataFile);
         ByteBuffer fromRange = serializer.readKey(this, 0);
-        ByteBuffer toRange = serializer.readKey(this, indexesFile.limit() - FileUtils.INDEX_SIZE);
+        ByteBuffer toRange = serializer.readKey(this, size() - 1);
         this.range = new ByteBufferRange(fromRange, toRange);
     }
 
-    public MappedByteBuffer dataFile() {
+    public MemorySegment dataFile() {
         return dataFile;
     }
 
-    public MappedByteBuffer indexesFile() {
+    public MemorySegment indexesFile() {
         return indexesFile;
     }
 
+    public FileMeta meta() {
+        return meta;
+    }
+
     public ByteBufferRange range() {
         return this.range;
     }
 
-    public int dataLimit() {
-        return dataFile.limit();
+    // Number of entries
+    public long size() {
+        return indexesFile.byteSize() / meta.indexSize();
     }
 
-    public int indexesLimit() {
-        return indexesFile.limit();
+    public void close() {
+        this.scope.close();
     }
-
 }
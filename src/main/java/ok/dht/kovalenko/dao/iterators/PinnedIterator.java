@@ -0,0 +1,73 @@
+package ok.dht.kovalenko.dao.iterators;
+
+import ok.dht.kovalenko.dao.aliases.DiskSSTableVersion;
+import ok.dht.kovalenko.dao.aliases.TypedBaseEntry;
+import ok.dht.kovalenko.dao.aliases.TypedEntry;
+import ok.dht.kovalenko.dao.aliases.TypedIterator;
+import ok.dht.kovalenko.dao.utils.DaoUtils;
+
+import java.io.Closeable;
+import java.lang.ref.Cleaner;
+
+/*
+ * Holds the version of disk tables the delegate reads from.
+ * The pin is released once the delegate is exhausted or the iterator is closed;
+ * the cleaner releases it only if an unfinished iterator is abandoned without closing.
+ * Entries read from the mapped files are copied to the heap before they are handed out,
+ * so they stay valid after the pin is released.
+ */
+public class PinnedIterator
+        implements TypedIterator, Closeable {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final TypedIterator delegate;
+    private final Unpin unpin;
+    private final Cleaner.Cleanable cleanable;
+
+    public PinnedIterator(TypedIterator delegate, DiskSSTableVersion version) {
+        this.delegate = delegate;
+        this.unpin = new Unpin(version);
+        this.cleanable = CLEANER.register(this, this.unpin);
+    }
+
+    @Override
+    public boolean hasNext() {
+        boolean hasNext = this.delegate.hasNext();
+        if (!hasNext) {
+            close();
+        }
+        return hasNext;
+    }
+
+    @Override
+    public TypedEntry next() {
+        TypedEntry entry = this.delegate.next();
+        if (entry.key().isDirect() || entry.value() != null && entry.value().isDirect()) {
+            entry = new TypedBaseEntry(DaoUtils.copyOf(entry.key()),
+                    entry.value() == null ? null : DaoUtils.copyOf(entry.value()));
+        }
+        return entry;
+    }
+
+    @Override
+    public void close() {
+        this.cleanable.clean();
+    }
+
+    // Mustn't reference the iterator, otherwise it would never become phantom reachable
+    private static final class Unpin implements Runnable {
+
+        private final DiskSSTableVersion version;
+
+        private Unpin(DiskSSTableVersion version) {
+            this.version = version;
+        }
+
+        @Override
+        public void run() {
+            // Cleanable runs it at most once
+            this.version.release();
+        }
+    }
+}
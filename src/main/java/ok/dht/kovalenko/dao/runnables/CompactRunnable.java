@@ -2,22 +2,43 @@ package ok.dht.kovalenko.dao.runnables;
 
 import ok.dht.ServiceConfig;
 import ok.dht.kovalenko.dao.Serializer;
+import ok.dht.kovalenko.dao.aliases.DiskSSTableVersion;
+import ok.dht.kovalenko.dao.aliases.MappedFileDiskSSTable;
 import ok.dht.kovalenko.dao.aliases.MappedFileDiskSSTableStorage;
+import ok.dht.kovalenko.dao.aliases.TypedEntry;
 import ok.dht.kovalenko.dao.aliases.TypedIterator;
+import ok.dht.kovalenko.dao.dto.MappedPairedFiles;
 import ok.dht.kovalenko.dao.dto.PairedFiles;
 import ok.dht.kovalenko.dao.iterators.MergeIterator;
+import ok.dht.kovalenko.dao.utils.CompactionUtils;
 import ok.dht.kovalenko.dao.utils.DaoUtils;
-import ok.dht.kovalenko.dao.utils.FileUtils;
-import ok.dht.kovalenko.dao.visitors.CompactVisitor;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+/*
+ * The key space is split into ranges by keys sampled from the tables' indexes,
+ * every range is merged by its own worker into its own output, and all the outputs are committed at once.
+ * Outputs don't overlap, so they may take any ordinals not greater than the greatest merged one
+ * (tables flushed meanwhile have greater ordinals, see FileUtils::createPairedFiles).
+ * All the tables are merged, so the outputs are the bottom-most ones and tombstones are dropped
+ * (MergeIterator skips them): nothing older is left for them to shadow.
+ */
 public class CompactRunnable implements Runnable {
 
+    private static final int MIN_ENTRIES_PER_PARTITION = 1 << 16;
+    private static final int SAMPLES_PER_PARTITION = 16;
+
     private final ServiceConfig config;
     private final Serializer serializer;
     private final MappedFileDiskSSTableStorage diskStorage;
@@ -35,24 +56,137 @@ public class CompactRunnable implements Runnable {
 
     @Override
     public void run() {
+        // Flushes completed from now on make the next compaction necessary
+        if (this.wasCompacted.getAndSet(true)) {
+            return;
+        }
+
+        // Merged tables stay mapped until the compacted ones are published
+        DiskSSTableVersion version = this.diskStorage.pin();
         try {
-            if (this.wasCompacted.get()) {
-                return;
-            }
+            compact(version.tables());
+        } finally {
+            version.release();
+        }
+    }
+
+    private void compact(List<MappedFileDiskSSTable> tables) {
+        if (tables.isEmpty() || tables.size() == 1 && tables.get(0).getValue().meta().tombstones() == 0) {
+            return;
+        }
 
-            TypedIterator mergeIterator
-                    = new MergeIterator(Collections.emptyList(), this.diskStorage.get(DaoUtils.EMPTY_BYTEBUFFER, null));
-            if (!mergeIterator.hasNext()) {
-                return;
+        long maxOrdinal = 0;
+        long entries = 0;
+        for (MappedFileDiskSSTable table : tables) {
+            maxOrdinal = Math.max(maxOrdinal, table.getKey());
+            entries += table.getValue().size();
+        }
+        long nPartitions = Math.min(Runtime.getRuntime().availableProcessors(),
+                Math.min(maxOrdinal, entries / MIN_ENTRIES_PER_PARTITION));
+        List<ByteBuffer> bounds = splitKeys(tables, entries, (int) Math.max(1, nPartitions));
+
+        try {
+            List<Long> outputs = mergePartitions(tables, bounds);
+            List<Long> targets = new ArrayList<>(outputs.size());
+            for (long ordinal = 1; ordinal <= outputs.size(); ++ordinal) {
+                targets.add(ordinal);
+            }
+            List<Long> obsolete = new ArrayList<>();
+            for (MappedFileDiskSSTable table : tables) {
+                if (table.getKey() > outputs.size()) {
+                    obsolete.add(table.getKey());
+                }
             }
 
-            PairedFiles pairedFiles = FileUtils.createPairedFiles(this.config, this.filesCounter);
-            this.serializer.write(mergeIterator, pairedFiles);
-            Files.walkFileTree(this.config.workingDir(),
-                    new CompactVisitor(this.config, pairedFiles, this.serializer, this.filesCounter));
-            this.wasCompacted.set(true);
-        } catch (IOException | ReflectiveOperationException e) {
+            this.diskStorage.replace(tables, targets,
+                    () -> CompactionUtils.commit(this.config, outputs, targets, obsolete, this.filesCounter));
+            CompactionUtils.finish(this.config);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Returns numbers of the written outputs, ranges without live entries have no output.
+     */
+    private List<Long> mergePartitions(List<MappedFileDiskSSTable> tables, List<ByteBuffer> bounds)
+            throws IOException {
+        int nPartitions = bounds.size() + 1;
+        ExecutorService workers = Executors.newFixedThreadPool(nPartitions);
+        try {
+            List<Future<Boolean>> partitions = new ArrayList<>(nPartitions);
+            for (int i = 0; i < nPartitions; ++i) {
+                // Every worker gets its own buffers: comparisons move their positions
+                ByteBuffer from = i == 0 ? DaoUtils.EMPTY_BYTEBUFFER : bounds.get(i - 1).duplicate();
+                ByteBuffer to = i == nPartitions - 1 ? null : bounds.get(i).duplicate();
+                int partition = i;
+                partitions.add(workers.submit(() -> mergePartition(tables, from, to, partition)));
+            }
+
+            List<Long> outputs = new ArrayList<>(nPartitions);
+            for (int i = 0; i < nPartitions; ++i) {
+                if (partitions.get(i).get()) {
+                    outputs.add((long) i);
+                }
+            }
+            return outputs;
+        } catch (ExecutionException e) {
+            CompactionUtils.deleteOutputFiles(this.config);
+            throw new IOException("Compaction of a range has failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CompactionUtils.deleteOutputFiles(this.config);
+            throw new IOException("Compaction was interrupted", e);
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private boolean mergePartition(List<MappedFileDiskSSTable> tables, ByteBuffer from, ByteBuffer to,
+                                   int partition) throws IOException, ReflectiveOperationException {
+        List<Iterator<TypedEntry>> diskIterators = new ArrayList<>(tables.size());
+        for (MappedFileDiskSSTable table : tables) {
+            Iterator<TypedEntry> rangeIt = table.get(from, to);
+            if (rangeIt != null) {
+                diskIterators.add(rangeIt);
+            }
+        }
+        TypedIterator mergeIterator = new MergeIterator(Collections.emptyList(), diskIterators);
+        if (!mergeIterator.hasNext()) {
+            return false;
+        }
+        PairedFiles output = CompactionUtils.createOutputFiles(this.config, partition);
+        this.serializer.write(mergeIterator, output);
+        return true;
+    }
+
+    /**
+     * Keys are sampled from every table proportionally to its size, so ranges hold about the same number of entries.
+     */
+    private List<ByteBuffer> splitKeys(List<MappedFileDiskSSTable> tables, long entries, int nPartitions) {
+        if (nPartitions == 1) {
+            return Collections.emptyList();
+        }
+
+        List<ByteBuffer> samples = new ArrayList<>();
+        long nSamples = (long) nPartitions * SAMPLES_PER_PARTITION;
+        for (MappedFileDiskSSTable table : tables) {
+            MappedPairedFiles mappedPairedFiles = table.getValue();
+            long size = mappedPairedFiles.size();
+            long tableSamples = Math.max(1, nSamples * size / entries);
+            for (long i = 0; i < tableSamples; ++i) {
+                samples.add(this.serializer.readKey(mappedPairedFiles, i * size / tableSamples));
+            }
+        }
+        samples.sort(DaoUtils.byteBufferComparator);
+
+        List<ByteBuffer> bounds = new ArrayList<>(nPartitions - 1);
+        for (int i = 1; i < nPartitions; ++i) {
+            ByteBuffer bound = samples.get(i * samples.size() / nPartitions);
+            if (bounds.isEmpty() || DaoUtils.byteBufferComparator.lessThan(bounds.get(bounds.size() - 1), bound)) {
+                bounds.add(bound);
+            }
+        }
+        return bounds;
+    }
 }
@@ -3,12 +3,14 @@ package ok.dht.kovalenko.dao.runnables;
 import ok.dht.ServiceConfig;
 import ok.dht.kovalenko.dao.LSMDao;
 import ok.dht.kovalenko.dao.Serializer;
+import ok.dht.kovalenko.dao.aliases.MappedFileDiskSSTableStorage;
 import ok.dht.kovalenko.dao.aliases.MemorySSTable;
 import ok.dht.kovalenko.dao.dto.PairedFiles;
 import ok.dht.kovalenko.dao.utils.FileUtils;
 
 import java.io.IOException;
 import java.util.ConcurrentModificationException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class FlushRunnable implements Runnable {
@@ -16,36 +18,44 @@ public class FlushRunnable implements Runnable {
     private final ServiceConfig config;
     private final Serializer serializer;
     private final LSMDao.MemoryStorage memoryStorage;
+    private final MappedFileDiskSSTableStorage diskStorage;
     private final AtomicLong filesCounter;
+    private final AtomicLong lastOrdinal;
+    private final AtomicBoolean wasCompacted;
+    private final Runnable compactionTrigger;
 
-    public FlushRunnable(ServiceConfig config, Serializer serializer,
-                         LSMDao.MemoryStorage memoryStorage, AtomicLong filesCounter) {
+    public FlushRunnable(ServiceConfig config, Serializer serializer, LSMDao.MemoryStorage memoryStorage,
+                         MappedFileDiskSSTableStorage diskStorage, AtomicLong filesCounter, AtomicLong lastOrdinal,
+                         AtomicBoolean wasCompacted, Runnable compactionTrigger) {
         this.config = config;
         this.serializer = serializer;
         this.memoryStorage = memoryStorage;
+        this.diskStorage = diskStorage;
         this.filesCounter = filesCounter;
+        this.lastOrdinal = lastOrdinal;
+        this.wasCompacted = wasCompacted;
+        this.compactionTrigger = compactionTrigger;
     }
 
     @Override
     public void run() {
         try {
-            if (this.memoryStorage.writeSSTables().isEmpty()) {
+            // Runs on the only flusher thread, so the head can't be taken by anyone else
+            MemorySSTable memorySSTable = this.memoryStorage.flushSSTables().peekFirst();
+            if (memorySSTable == null) {
                 return;
             }
+            memorySSTable.awaitWriters();
 
-            MemorySSTable memorySSTable = this.memoryStorage.writeSSTables().poll();
-            if (memorySSTable == null || !memorySSTable.values().iterator().hasNext()) {
-                return;
-            }
-
-            this.memoryStorage.flushSSTables().add(memorySSTable);
-            PairedFiles pairedFiles = FileUtils.createPairedFiles(this.config, this.filesCounter);
+            PairedFiles pairedFiles = FileUtils.createPairedFiles(this.config, this.filesCounter, this.lastOrdinal);
             this.serializer.write(memorySSTable.values().iterator(), pairedFiles);
-            // It is impossible that any other thread will capture memorySSTable
-            if (!this.memoryStorage.flushSSTables().remove(memorySSTable)) {
+            // The table becomes visible on disk before it disappears from memory
+            this.diskStorage.add(pairedFiles);
+            this.wasCompacted.set(false);
+            if (this.memoryStorage.flushSSTables().pollFirst() != memorySSTable) {
                 throw new ConcurrentModificationException("Unexpected concurrent removing SSTable");
             }
-            this.memoryStorage.writeSSTables().add(new MemorySSTable());
+            this.compactionTrigger.run();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,140 @@
+package ok.dht.kovalenko.dao.utils;
+
+import ok.dht.ServiceConfig;
+import ok.dht.kovalenko.dao.dto.PairedFiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Compaction writes its outputs into temporary files (dataLog?.txt, indexesLog?.txt) and commits them at once:
+ * the compaction log lists which output takes which ordinal and which merged tables are removed.
+ * Once the log is on disk the compaction is committed, applying it is idempotent,
+ * so a crash in the middle is finished on the next start. Without the log the outputs are just thrown away.
+ */
+public final class CompactionUtils {
+
+    private static final String RENAME = "rename";
+    private static final String DELETE = "delete";
+    private static final String SEPARATOR = " ";
+
+    private CompactionUtils() {
+    }
+
+    public static PairedFiles createOutputFiles(ServiceConfig config, long partition) throws IOException {
+        Path dataFile = FileUtils.getFilePath(FileUtils.getCompactDataFilename(partition), config);
+        Path indexesFile = FileUtils.getFilePath(FileUtils.getCompactIndexesFilename(partition), config);
+        Files.deleteIfExists(dataFile);
+        Files.deleteIfExists(indexesFile);
+        Files.createFile(dataFile);
+        Files.createFile(indexesFile);
+        return new PairedFiles(dataFile, indexesFile);
+    }
+
+    /**
+     * Output with number outputs[i] becomes the table with ordinal targets[i], tables from obsolete are deleted.
+     */
+    public static void commit(ServiceConfig config, List<Long> outputs, List<Long> targets, List<Long> obsolete,
+                              AtomicLong filesCounter) throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < outputs.size(); ++i) {
+            log.append(RENAME).append(SEPARATOR).append(outputs.get(i))
+                    .append(SEPARATOR).append(targets.get(i)).append('\n');
+        }
+        for (long ordinal : obsolete) {
+            log.append(DELETE).append(SEPARATOR).append(ordinal).append('\n');
+        }
+
+        Path tmp = FileUtils.getFilePath(FileUtils.COMPACTION_LOG_TMP_FILENAME, config);
+        ByteBuffer bytes = ByteBuffer.wrap(log.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        }
+        // Commit point
+        Files.move(tmp, FileUtils.getFilePath(FileUtils.COMPACTION_LOG_FILENAME, config),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        apply(config, filesCounter);
+    }
+
+    /**
+     * Removes the compaction log when its result is published (recorded in the manifest).
+     */
+    public static void finish(ServiceConfig config) throws IOException {
+        Files.deleteIfExists(FileUtils.getFilePath(FileUtils.COMPACTION_LOG_FILENAME, config));
+    }
+
+    /**
+     * Finishes a committed compaction interrupted by a crash and removes outputs of an uncommitted one.
+     * Has to be called before the tables are loaded.
+     */
+    public static void recover(ServiceConfig config, AtomicLong filesCounter) throws IOException {
+        if (Files.exists(FileUtils.getFilePath(FileUtils.COMPACTION_LOG_FILENAME, config))) {
+            apply(config, filesCounter);
+            // The manifest doesn't match the folder anymore
+            Files.deleteIfExists(FileUtils.getFilePath(FileUtils.MANIFEST_FILENAME, config));
+            finish(config);
+        }
+        Files.deleteIfExists(FileUtils.getFilePath(FileUtils.COMPACTION_LOG_TMP_FILENAME, config));
+        deleteOutputFiles(config);
+    }
+
+    public static void deleteOutputFiles(ServiceConfig config) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(config.workingDir())) {
+            for (Path file : files) {
+                if (FileUtils.isCompactDataFile(file) || FileUtils.isCompactIndexesFile(file)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static void apply(ServiceConfig config, AtomicLong filesCounter) throws IOException {
+        Path log = FileUtils.getFilePath(FileUtils.COMPACTION_LOG_FILENAME, config);
+        for (String line : Files.readAllLines(log, StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split(SEPARATOR);
+            if (RENAME.equals(fields[0])) {
+                long partition = Long.parseLong(fields[1]);
+                long ordinal = Long.parseLong(fields[2]);
+                rename(FileUtils.getFilePath(FileUtils.getCompactDataFilename(partition), config),
+                        FileUtils.getFilePath(FileUtils.getDataFilename(ordinal), config), filesCounter);
+                rename(FileUtils.getFilePath(FileUtils.getCompactIndexesFilename(partition), config),
+                        FileUtils.getFilePath(FileUtils.getIndexesFilename(ordinal), config), filesCounter);
+            } else if (DELETE.equals(fields[0])) {
+                long ordinal = Long.parseLong(fields[1]);
+                FileUtils.deleteFile(FileUtils.getFilePath(FileUtils.getDataFilename(ordinal), config), filesCounter);
+                FileUtils.deleteFile(FileUtils.getFilePath(FileUtils.getIndexesFilename(ordinal), config),
+                        filesCounter);
+            } else {
+                throw new IllegalStateException("Compaction log is corrupted: " + line);
+            }
+        }
+    }
+
+    private static void rename(Path output, Path target, AtomicLong filesCounter) throws IOException {
+        if (!Files.exists(output)) {
+            // Already applied
+            return;
+        }
+        if (!Files.exists(target)) {
+            filesCounter.incrementAndGet();
+        }
+        // Mappings of the replaced file stay valid until they are released
+        Files.move(output, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
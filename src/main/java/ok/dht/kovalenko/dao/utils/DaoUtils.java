@@ -14,4 +14,13 @@ public final class DaoUtils {
 
     private DaoUtils() {
     }
+
+    /**
+     * Heap copy of the remaining bytes, for data which has to outlive the mapped file it was read from.
+     */
+    public static ByteBuffer copyOf(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
 }
@@ -15,18 +15,21 @@ import java.util.regex.Pattern;
 
 public final class FileUtils {
 
-    public static final int INDEX_SIZE = Integer.BYTES;
+    public static final int INDEX_SIZE = Long.BYTES;
+    public static final int LEGACY_INDEX_SIZE = Integer.BYTES;
     public static final String DATA_PREFIX = "data";
     public static final String INDEXES_PREFIX = "indexes";
     public static final String EXTENSION = ".txt";
     public static final String COMPACT_SUFFIX = "Log";
+    public static final String MANIFEST_FILENAME = "manifest" + EXTENSION;
+    public static final String MANIFEST_TMP_FILENAME = "manifest.tmp";
+    public static final String COMPACTION_LOG_FILENAME = "compaction" + COMPACT_SUFFIX + EXTENSION;
+    public static final String COMPACTION_LOG_TMP_FILENAME = "compaction" + COMPACT_SUFFIX + ".tmp";
 
     public static final String DATA_FILENAME = DATA_PREFIX + "?" + EXTENSION;
-    public static final String COMPACT_DATA_FILENAME_TO_BE_SET
-            = getFullFilename(DATA_FILENAME, 1);
     public static final String INDEXES_FILENAME = INDEXES_PREFIX + "?" + EXTENSION;
-    public static final String COMPACT_INDEXES_FILENAME_TO_BE_SET
-            = getFullFilename(INDEXES_FILENAME, 1);
+    public static final String COMPACT_DATA_FILENAME = DATA_PREFIX + COMPACT_SUFFIX + "?" + EXTENSION;
+    public static final String COMPACT_INDEXES_FILENAME = INDEXES_PREFIX + COMPACT_SUFFIX + "?" + EXTENSION;
     private static final String NUMBER_PATTERN = "(\\d+)";
     private static final Pattern DATA_FILENAME_PATTERN
             = getFilePattern(DATA_PREFIX);
@@ -58,6 +61,19 @@ public final class FileUtils {
         return fileMatches(file, COMPACT_INDEXES_FILENAME_PATTERN);
     }
 
+    public static boolean isManifestFile(Path file) {
+        return file.getFileName().toString().equals(MANIFEST_FILENAME);
+    }
+
+    public static boolean isManifestTmpFile(Path file) {
+        return file.getFileName().toString().equals(MANIFEST_TMP_FILENAME);
+    }
+
+    public static boolean isCompactionLogFile(Path file) {
+        String filename = file.getFileName().toString();
+        return filename.equals(COMPACTION_LOG_FILENAME) || filename.equals(COMPACTION_LOG_TMP_FILENAME);
+    }
+
     public static Integer getFileNumber(Path file) {
         Matcher matcher = FILE_NUMBER_PATTERN.matcher(file.getFileName().toString());
         if (!matcher.find()) {
@@ -74,11 +90,19 @@ public final class FileUtils {
         return getFullFilename(INDEXES_FILENAME, ordinal);
     }
 
+    public static String getCompactDataFilename(long ordinal) {
+        return getFullFilename(COMPACT_DATA_FILENAME, ordinal);
+    }
+
+    public static String getCompactIndexesFilename(long ordinal) {
+        return getFullFilename(COMPACT_INDEXES_FILENAME, ordinal);
+    }
+
     public static Path getFilePath(String filename, ServiceConfig config) {
         return config.workingDir().resolve(filename);
     }
 
-    public static Path createFile(Function<Integer, String> filenameGenerator, int priority, ServiceConfig config)
+    public static Path createFile(Function<Long, String> filenameGenerator, long priority, ServiceConfig config)
             throws IOException {
         String filename = filenameGenerator.apply(priority);
         Path file = FileUtils.getFilePath(filename, config);
@@ -86,10 +110,16 @@ public final class FileUtils {
         return file;
     }
 
-    public static PairedFiles createPairedFiles(ServiceConfig config, AtomicLong filesCounter) {
+    /**
+     * Creates files for a new table. Ordinals only grow (lastOrdinal holds the greatest one in use),
+     * so a new table always has a greater priority than the existing ones,
+     * even if some ordinals were freed by compaction.
+     */
+    public static PairedFiles createPairedFiles(ServiceConfig config, AtomicLong filesCounter,
+                                                AtomicLong lastOrdinal) {
         PairedFiles pairedFiles = null;
-        int fileOrdinal = 1;
         while (pairedFiles == null) {
+            long fileOrdinal = lastOrdinal.incrementAndGet();
             try {
                 pairedFiles = new PairedFiles(
                         FileUtils.createFile(FileUtils::getDataFilename, fileOrdinal, config),
@@ -97,12 +127,11 @@ public final class FileUtils {
                 );
                 filesCounter.addAndGet(2);
             } catch (FileAlreadyExistsException ex) {
-                ++fileOrdinal;
+                // Leftover of an unfinished flush, it isn't listed anywhere
                 continue;
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
-            ++fileOrdinal;
         }
         return pairedFiles;
     }
@@ -0,0 +1,114 @@
+package ok.dht.kovalenko.dao.utils;
+
+import ok.dht.ServiceConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Manifest lists the sstables the dao has published, one line per table: "priority dataSize indexesSize".
+ * It is rewritten (via temporary file and atomic move) after every flush and compaction,
+ * so the next start may take the tables from it instead of scanning and validating the whole folder.
+ * A table written but not yet recorded is treated as not flushed and is deleted on start.
+ */
+public final class ManifestUtils {
+
+    private static final String SEPARATOR = " ";
+
+    private ManifestUtils() {
+    }
+
+    /**
+     * Returns priorities of the recorded tables or null if there is no manifest
+     * or it doesn't match the folder anymore (then the folder has to be scanned).
+     */
+    public static List<Long> read(ServiceConfig config) throws IOException {
+        Path manifest = FileUtils.getFilePath(FileUtils.MANIFEST_FILENAME, config);
+        if (!Files.exists(manifest)) {
+            return null;
+        }
+
+        List<Long> priorities = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split(SEPARATOR);
+            if (fields.length != 3) {
+                return null;
+            }
+            try {
+                long priority = Long.parseLong(fields[0]);
+                if (!hasSize(FileUtils.getFilePath(FileUtils.getDataFilename(priority), config),
+                        Long.parseLong(fields[1]))
+                        || !hasSize(FileUtils.getFilePath(FileUtils.getIndexesFilename(priority), config),
+                        Long.parseLong(fields[2]))) {
+                    return null;
+                }
+                priorities.add(priority);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return priorities;
+    }
+
+    /**
+     * Deletes sstables the manifest doesn't list: they were written but not published before a crash.
+     * Left in place, they would come back (as the newest tables) on the next start which scans the folder.
+     */
+    public static void deleteUnlisted(ServiceConfig config, Collection<Long> priorities) throws IOException {
+        Set<Long> listed = new HashSet<>(priorities);
+        List<Path> unlisted = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(config.workingDir())) {
+            for (Path file : files) {
+                if ((FileUtils.isDataFile(file) || FileUtils.isIndexesFile(file))
+                        && !listed.contains(FileUtils.getFileNumber(file).longValue())) {
+                    unlisted.add(file);
+                }
+            }
+        }
+        for (Path file : unlisted) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public static void write(ServiceConfig config, Collection<Long> priorities) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        for (long priority : priorities) {
+            manifest.append(priority)
+                    .append(SEPARATOR)
+                    .append(Files.size(FileUtils.getFilePath(FileUtils.getDataFilename(priority), config)))
+                    .append(SEPARATOR)
+                    .append(Files.size(FileUtils.getFilePath(FileUtils.getIndexesFilename(priority), config)))
+                    .append('\n');
+        }
+        Path tmp = FileUtils.getFilePath(FileUtils.MANIFEST_TMP_FILENAME, config);
+        ByteBuffer bytes = ByteBuffer.wrap(manifest.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, FileUtils.getFilePath(FileUtils.MANIFEST_FILENAME, config),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static boolean hasSize(Path file, long expectedSize) throws IOException {
+        return Files.exists(file) && Files.size(file) == expectedSize;
+    }
+}
@@ -1,9 +1,7 @@
 package ok.dht.kovalenko.dao.visitors;
 
-import ok.dht.ServiceConfig;
 import ok.dht.kovalenko.dao.Serializer;
 import ok.dht.kovalenko.dao.comparators.FileComparator;
-import ok.dht.kovalenko.dao.dto.FileMeta;
 import ok.dht.kovalenko.dao.utils.FileUtils;
 
 import java.io.IOException;
@@ -11,9 +9,10 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NavigableSet;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicLong;
@@ -24,32 +23,27 @@ public class ConfigVisitor
     private final NavigableSet<Path> dataFiles = new TreeSet<>(FileComparator.INSTANSE);
     private final NavigableSet<Path> indexesFiles = new TreeSet<>(FileComparator.INSTANSE);
     private final Serializer serializer;
-    private final Path compactedDataFilePathToBeSet;
-    private final Path compactedIndexesFilePathToBeSet;
     private final AtomicLong filesCounter;
 
-    private Path compactedDataPath;
-    private Path compactedIndexesPath;
-
-    public ConfigVisitor(ServiceConfig config, Serializer serializer, AtomicLong filesCounter) {
+    public ConfigVisitor(Serializer serializer, AtomicLong filesCounter) {
         this.serializer = serializer;
-        this.compactedDataFilePathToBeSet
-                = FileUtils.getFilePath(FileUtils.COMPACT_DATA_FILENAME_TO_BE_SET, config);
-        this.compactedIndexesFilePathToBeSet
-                = FileUtils.getFilePath(FileUtils.COMPACT_INDEXES_FILENAME_TO_BE_SET, config);
         this.filesCounter = filesCounter;
     }
 
     @Override
-    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-        if (FileUtils.isDataFile(file)) {
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (FileUtils.isManifestFile(file)) {
+            // Stale manifest (otherwise the folder wouldn't be scanned), it is rewritten after the scan
+            return FileVisitResult.CONTINUE;
+        } else if (FileUtils.isManifestTmpFile(file) || FileUtils.isCompactionLogFile(file)
+                || FileUtils.isCompactDataFile(file) || FileUtils.isCompactIndexesFile(file)) {
+            // Leftovers, compaction is already recovered (see CompactionUtils::recover)
+            Files.delete(file);
+            return FileVisitResult.CONTINUE;
+        } else if (FileUtils.isDataFile(file)) {
             this.dataFiles.add(file);
         } else if (FileUtils.isIndexesFile(file)) {
             this.indexesFiles.add(file);
-        } else if (FileUtils.isCompactDataFile(file)) {
-            this.compactedDataPath = file;
-        } else if (FileUtils.isCompactIndexesFile(file)) {
-            this.compactedIndexesPath = file;
         } else {
             throw new IllegalStateException("Config folder contains unresolved file: " + file);
         }
@@ -59,78 +53,37 @@ public class ConfigVisitor
 
     @Override
     public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-        boolean needToExit = finishCompact();
-        if (needToExit) {
-            return FileVisitResult.CONTINUE;
-        }
-
-        deleteEmptyOrIncompletelyWrittenFiles(this.dataFiles.iterator(), this.indexesFiles.iterator());
+        deleteEmptyOrIncompletelyWrittenFiles();
         checkIfDataAndIndexesFilesSizeMatch();
 
         Iterator<Path> dataIterator = this.dataFiles.iterator();
         Iterator<Path> indexesIterator = this.indexesFiles.iterator();
-        for (int priority = 1; priority <= this.dataFiles.size(); ++priority) {
-            Path dataFile = dataIterator.next();
-            Path indexesFile = indexesIterator.next();
-            checkIfFilesArePaired(dataFile, indexesFile, priority);
+        while (dataIterator.hasNext()) {
+            checkIfFilesArePaired(dataIterator.next(), indexesIterator.next());
         }
 
         return FileVisitResult.CONTINUE;
     }
 
-    private boolean finishCompact() throws IOException {
-        return finishFullCompact() || finishPartialCompact();
-    }
-
-    private boolean finishFullCompact() throws IOException {
-        if (this.compactedDataPath == null) {
-            return false;
-        }
-
-        // It is guaranteed that this.compactedIndexesFilePath != null (see Serializer::write for more info)
-        // We have to check only FileMeta's success
-        {
-            FileMeta meta = this.serializer.meta(this.compactedDataPath);
-            if (meta.notWritten()) {
-                FileUtils.deleteFile(this.compactedDataPath, filesCounter);
-                FileUtils.deleteFile(this.compactedIndexesPath, filesCounter);
-                return false;
-            }
-        }
-
-        // ConfigVisitor calls only in the beginning of dao's initialization,
-        // so we may don't worry about multithreading problems with files' deleting below
-        deleteFiles(this.dataFiles);
-        deleteFiles(this.indexesFiles);
-        Files.move(this.compactedDataPath, this.compactedDataFilePathToBeSet, StandardCopyOption.ATOMIC_MOVE);
-        Files.move(this.compactedIndexesPath, this.compactedIndexesFilePathToBeSet, StandardCopyOption.ATOMIC_MOVE);
-        return true;
-    }
-
-    private boolean finishPartialCompact() throws IOException {
-        if (this.compactedIndexesPath == null) {
-            return false;
-        }
-
+    /**
+     * Priorities of the found tables, ordinals may have gaps left by compactions.
+     */
+    public List<Long> priorities() {
+        List<Long> priorities = new ArrayList<>(this.dataFiles.size());
         for (Path dataFile : this.dataFiles) {
-            if (isTargetFile(dataFile)) {
-                FileUtils.deleteFile(dataFile, filesCounter);
-            }
+            priorities.add((long) FileUtils.getFileNumber(dataFile));
         }
-
-        deleteFiles(this.indexesFiles);
-        // It is guaranteed that compacted data has success Meta
-        Files.move(this.compactedIndexesPath, this.compactedIndexesFilePathToBeSet, StandardCopyOption.ATOMIC_MOVE);
-        return true;
+        return priorities;
     }
 
-    private void deleteEmptyOrIncompletelyWrittenFiles(Iterator<Path> dataFiles, Iterator<Path> indexesFiles)
-            throws IOException {
-        while (dataFiles.hasNext()) {
-            Path dataFile = dataFiles.next();
-            Path indexesFile = indexesFiles.next();
-            FileMeta meta = this.serializer.meta(dataFile);
-            if (meta.notWritten()) {
+    private void deleteEmptyOrIncompletelyWrittenFiles() throws IOException {
+        Iterator<Path> dataIterator = this.dataFiles.iterator();
+        while (dataIterator.hasNext()) {
+            Path dataFile = dataIterator.next();
+            Path indexesFile = dataFile.resolveSibling(FileUtils.getIndexesFilename(FileUtils.getFileNumber(dataFile)));
+            if (Files.size(dataFile) == 0 || this.serializer.meta(dataFile).notWritten()) {
+                dataIterator.remove();
+                this.indexesFiles.remove(indexesFile);
                 FileUtils.deleteFile(dataFile, filesCounter);
                 FileUtils.deleteFile(indexesFile, filesCounter);
             }
@@ -144,25 +97,9 @@ public class ConfigVisitor
         }
     }
 
-    private void checkIfFilesArePaired(Path dataFile, Path indexesFile, int priority) {
-        if (areNotPairedFiles(dataFile, indexesFile, priority)) {
+    private void checkIfFilesArePaired(Path dataFile, Path indexesFile) {
+        if (!FileUtils.getFileNumber(dataFile).equals(FileUtils.getFileNumber(indexesFile))) {
             throw new IllegalStateException("Illegal order of data- and indexes-files");
         }
     }
-
-    private boolean areNotPairedFiles(Path dataFile, Path indexesFile, int priority) {
-        int dataFileNumber = FileUtils.getFileNumber(dataFile);
-        int indexesFileNumber = FileUtils.getFileNumber(indexesFile);
-        return dataFileNumber != priority || dataFileNumber != indexesFileNumber;
-    }
-
-    private void deleteFiles(NavigableSet<Path> files) throws IOException {
-        for (Path pathToFile : files) {
-            FileUtils.deleteFile(pathToFile, filesCounter);
-        }
-    }
-
-    private boolean isTargetFile(Path file) {
-        return !file.getFileName().toString().equals(FileUtils.COMPACT_DATA_FILENAME_TO_BE_SET);
-    }
 }
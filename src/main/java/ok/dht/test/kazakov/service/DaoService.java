@@ -8,7 +8,6 @@ import one.nio.util.Utf8;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.Arrays;
 
 public final class DaoService implements Closeable {
 
@@ -18,12 +17,9 @@ public final class DaoService implements Closeable {
         this.dao = dao;
     }
 
+    // Utf8.toBytes and request bodies already produce fresh arrays, so they are wrapped without copying
     private MemorySegment toMemorySegment(final String value) {
-        return toMemorySegment(Utf8.toBytes(value));
-    }
-
-    private MemorySegment toMemorySegment(final byte[] value) {
-        return MemorySegment.ofArray(Arrays.copyOf(value, value.length));
+        return MemorySegment.ofArray(Utf8.toBytes(value));
     }
 
     public byte[] get(final String id) throws IOException {
@@ -36,7 +32,7 @@ public final class DaoService implements Closeable {
     }
 
     public void upsert(final String id, final byte[] value) {
-        dao.upsert(new BaseEntry<>(toMemorySegment(id), toMemorySegment(value)));
+        dao.upsert(new BaseEntry<>(toMemorySegment(id), MemorySegment.ofArray(value)));
     }
 
     @Override
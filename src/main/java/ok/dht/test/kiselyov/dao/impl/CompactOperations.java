@@ -176,21 +176,12 @@ public class CompactOperations {
         Files.move(compactedIndex, basePath.resolve(fileIndexName + "0" + fileIndexExtension), ATOMIC_MOVE);
     }
 
-    void clearFileIterators(List<FileIterator> fileIterators) throws IOException {
-        for (FileIterator fi : fileIterators) {
-            if (fi != null) {
-                fi.close();
-            }
-        }
-        fileIterators.clear();
-    }
-
-    void deleteAllFiles(List<Path> ssTables, List<Path> ssIndexes) throws IOException {
-        for (Path ssTable : ssTables) {
-            Files.delete(ssTable);
+    void deleteAllFiles(List<SSTable> ssTables) throws IOException {
+        for (SSTable ssTable : ssTables) {
+            Files.delete(ssTable.dataPath());
         }
-        for (Path ssIndex : ssIndexes) {
-            Files.delete(ssIndex);
+        for (SSTable ssTable : ssTables) {
+            Files.delete(ssTable.indexPath());
         }
     }
 }
@@ -4,26 +4,21 @@ import ok.dht.test.kiselyov.dao.BaseEntry;
 import ok.dht.test.kiselyov.dao.Config;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class FileOperations {
     private long filesCount;
     private final Path basePath;
-    private final List<Path> ssTables;
-    private final List<Path> ssIndexes;
-    private final Map<Path, Long> tablesSizes;
-    private final List<FileIterator> fileIterators = new ArrayList<>();
+    // From the newest to the oldest table. Flushes and compaction publish a new list, readers take a snapshot
+    private volatile List<SSTable> ssTables;
     private final CompactOperations compactOperations;
     private static final String FILE_NAME = "myData";
     private static final String FILE_EXTENSION = ".dat";
@@ -32,9 +27,6 @@ public class FileOperations {
 
     public FileOperations(Config config) throws IOException {
         basePath = config.basePath();
-        ssTables = new ArrayList<>();
-        ssIndexes = new ArrayList<>();
-        tablesSizes = new ConcurrentHashMap<>();
         compactOperations = new CompactOperations(FILE_NAME, FILE_EXTENSION, FILE_INDEX_NAME, FILE_INDEX_EXTENSION);
         Map<Path, Path> allData = compactOperations.checkFiles(basePath);
         getDataInfo(allData);
@@ -42,40 +34,39 @@ public class FileOperations {
 
     private void getDataInfo(Map<Path, Path> allData) throws IOException {
         filesCount = allData.size();
+        List<SSTable> tables = new ArrayList<>(allData.size());
         for (Map.Entry<Path, Path> entry : allData.entrySet()) {
-            ssTables.add(entry.getKey());
-            ssIndexes.add(entry.getValue());
-        }
-        for (int i = 0; i < filesCount; i++) {
-            tablesSizes.put(ssIndexes.get(i), indexSize(ssIndexes.get(i)));
+            tables.add(SSTable.open(entry.getKey(), entry.getValue()));
         }
+        ssTables = List.copyOf(tables);
     }
 
-    Iterator<BaseEntry<byte[]>> diskIterator(byte[] from, byte[] to) throws IOException {
-        List<IndexedPeekIterator> peekIterators = new ArrayList<>();
-        for (int i = 0; i < ssTables.size(); i++) {
-            Iterator<BaseEntry<byte[]>> iterator = diskIterator(ssTables.get(i), ssIndexes.get(i), from, to);
-            peekIterators.add(new IndexedPeekIterator(i, iterator));
+    Iterator<BaseEntry<byte[]>> diskIterator(byte[] from, byte[] to) {
+        List<SSTable> tables = ssTables;
+        List<IndexedPeekIterator> peekIterators = new ArrayList<>(tables.size());
+        for (int i = 0; i < tables.size(); i++) {
+            peekIterators.add(new IndexedPeekIterator(i, new FileIterator(tables.get(i), from, to)));
         }
         return MergeIterator.of(peekIterators, EntryKeyComparator.INSTANCE);
     }
 
-    private Iterator<BaseEntry<byte[]>> diskIterator(Path ssTable, Path ssIndex, byte[] from, byte[] to)
-            throws IOException {
-        long indexSize = tablesSizes.get(ssIndex);
-        FileIterator fileIterator = new FileIterator(ssTable, ssIndex, from, to, indexSize);
-        fileIterators.add(fileIterator);
-        return fileIterator;
+    BaseEntry<byte[]> get(byte[] key) {
+        for (SSTable table : ssTables) {
+            long entryIndex = getEntryIndex(table.data(), table.index(), key, table.size());
+            if (entryIndex < table.size()
+                    && compareKey(table.data(), entryPosition(entryIndex, table.index()), key) == 0) {
+                return getCurrent(entryIndex, table.data(), table.index());
+            }
+        }
+        return null;
     }
 
-    static long getEntryIndex(FileChannel channelTable, FileChannel channelIndex,
-                              byte[] key, long indexSize) throws IOException {
+    static long getEntryIndex(ByteBuffer table, ByteBuffer index, byte[] key, long indexSize) {
         long low = 0;
         long high = indexSize - 1;
         long mid = (low + high) / 2;
         while (low <= high) {
-            BaseEntry<byte[]> current = getCurrent(mid, channelTable, channelIndex);
-            int compare = Arrays.compare(key, current.key());
+            int compare = compareKey(table, entryPosition(mid, index), key);
             if (compare > 0) {
                 low = mid + 1;
             } else if (compare < 0) {
@@ -93,26 +84,29 @@ public class FileOperations {
             return;
         }
         compactOperations.saveDataAndIndexesCompact(iterator, basePath);
-        compactOperations.clearFileIterators(fileIterators);
-        compactOperations.deleteAllFiles(ssTables, ssIndexes);
+        // Readers holding the replaced tables keep reading their mappings, deleted files stay mapped
+        compactOperations.deleteAllFiles(ssTables);
         compactOperations.renameCompactedFile(basePath);
-        ssTables.clear();
-        ssIndexes.clear();
-        tablesSizes.clear();
+        ssTables = List.of(SSTable.open(basePath.resolve(FILE_NAME + 0 + FILE_EXTENSION),
+                basePath.resolve(FILE_INDEX_NAME + 0 + FILE_INDEX_EXTENSION)));
         filesCount = 1;
     }
 
+    // Publishes the written table for readers, so the caller may drop it from memory afterwards.
+    // Flushes and compaction mustn't run concurrently
     void flush(NavigableMap<byte[], BaseEntry<byte[]>> pairs) throws IOException {
-        saveDataAndIndexes(pairs);
+        Path newFilePath = basePath.resolve(FILE_NAME + filesCount + FILE_EXTENSION);
+        Path newIndexPath = basePath.resolve(FILE_INDEX_NAME + filesCount + FILE_INDEX_EXTENSION);
+        saveDataAndIndexes(pairs, newFilePath, newIndexPath);
+        List<SSTable> tables = new ArrayList<>(ssTables.size() + 1);
+        tables.add(SSTable.open(newFilePath, newIndexPath));
+        tables.addAll(ssTables);
+        ssTables = List.copyOf(tables);
         filesCount++;
     }
 
-    private void saveDataAndIndexes(NavigableMap<byte[], BaseEntry<byte[]>> sortedPairs) throws IOException {
-        if (sortedPairs == null) {
-            return;
-        }
-        Path newFilePath = basePath.resolve(FILE_NAME + filesCount + FILE_EXTENSION);
-        Path newIndexPath = basePath.resolve(FILE_INDEX_NAME + filesCount + FILE_INDEX_EXTENSION);
+    private void saveDataAndIndexes(NavigableMap<byte[], BaseEntry<byte[]>> sortedPairs,
+                                    Path newFilePath, Path newIndexPath) throws IOException {
         if (!Files.exists(newFilePath)) {
             Files.createFile(newFilePath);
         }
@@ -178,42 +172,38 @@ public class FileOperations {
         return result;
     }
 
-    private long indexSize(Path indexPath) throws IOException {
-        long size;
-        try (RandomAccessFile raf = new RandomAccessFile(indexPath.toString(), "r")) {
-            size = raf.readLong();
+    static BaseEntry<byte[]> getCurrent(long pos, ByteBuffer table, ByteBuffer index) {
+        int position = entryPosition(pos, index);
+        int keyLength = table.getInt(position);
+        position += Integer.BYTES;
+        byte[] currentKey = new byte[keyLength];
+        table.get(position, currentKey);
+        position += keyLength;
+        int valueLength = table.getInt(position);
+        if (valueLength == -1) {
+            return new BaseEntry<>(currentKey, null);
         }
-        return size;
+        position += Integer.BYTES;
+        byte[] currentValue = new byte[valueLength];
+        table.get(position, currentValue);
+        return new BaseEntry<>(currentKey, currentValue);
     }
 
-    static BaseEntry<byte[]> getCurrent(long pos, FileChannel channelTable,
-                                        FileChannel channelIndex) throws IOException {
-        long position;
-        channelIndex.position((pos + 1) * Long.BYTES);
-        ByteBuffer buffLong = ByteBuffer.allocate(Long.BYTES);
-        channelIndex.read(buffLong);
-        buffLong.flip();
-        position = buffLong.getLong();
-        channelTable.position(position);
-        ByteBuffer buffInt = ByteBuffer.allocate(Integer.BYTES);
-        channelTable.read(buffInt);
-        buffInt.flip();
-        int keyLength = buffInt.getInt();
-        buffInt.clear();
-        ByteBuffer currentKey = ByteBuffer.allocate(keyLength);
-        channelTable.read(currentKey);
-        channelTable.read(buffInt);
-        buffInt.flip();
-        int valueLength = buffInt.getInt();
-        if (valueLength == -1) {
-            return new BaseEntry<>(currentKey.array(), null);
-        }
-        ByteBuffer currentValue = ByteBuffer.allocate(valueLength);
-        channelTable.read(currentValue);
-        return new BaseEntry<>(currentKey.array(), currentValue.array());
+    private static int entryPosition(long pos, ByteBuffer index) {
+        return (int) index.getLong((int) ((pos + 1) * Long.BYTES));
     }
 
-    public void clearFileIterators() throws IOException {
-        compactOperations.clearFileIterators(fileIterators);
+    // Compares the key with the stored one in place, the same way as Arrays::compare does
+    private static int compareKey(ByteBuffer table, int position, byte[] key) {
+        int keyLength = table.getInt(position);
+        int keyStart = position + Integer.BYTES;
+        int length = Math.min(keyLength, key.length);
+        for (int i = 0; i < length; i++) {
+            int compare = Byte.compare(key[i], table.get(keyStart + i));
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(key.length, keyLength);
     }
 }
@@ -5,83 +5,176 @@ import ok.dht.test.kiselyov.dao.Config;
 import ok.dht.test.kiselyov.dao.Dao;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class PersistentDao implements Dao<byte[], BaseEntry<byte[]>> {
-    private final NavigableMap<byte[], BaseEntry<byte[]>> pairs;
+    // Tables are never cleared: a reader that has taken one keeps seeing all its entries
+    private volatile NavigableMap<byte[], BaseEntry<byte[]>> pairs;
+    // The table being written by the flusher, it is readable until the written file is published
+    private volatile NavigableMap<byte[], BaseEntry<byte[]>> flushingPairs;
+    private final AtomicLong pairsSize = new AtomicLong();
+    // Upserts share the lock, swapping the tables takes it exclusively
+    private final ReadWriteLock upsertLock = new ReentrantReadWriteLock();
+    private final ExecutorService flushExecutor;
+    private Future<?> flushTask = CompletableFuture.completedFuture(null);
     private final FileOperations fileOperations;
+    private final long flushThresholdBytes;
 
     public PersistentDao(Config config) throws IOException {
         pairs = new ConcurrentSkipListMap<>(Arrays::compare);
+        flushingPairs = new ConcurrentSkipListMap<>(Arrays::compare);
         fileOperations = new FileOperations(config);
+        flushThresholdBytes = config.flushThresholdBytes();
+        // Flushes and compaction change the files, so they share a single thread
+        flushExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "PersistentDaoFlusher"));
     }
 
     @Override
     public Iterator<BaseEntry<byte[]>> get(byte[] from, byte[] to) throws IOException {
-        Iterator<BaseEntry<byte[]>> memoryIterator;
-        if (from == null && to == null) {
-            memoryIterator = pairs.values().iterator();
-        } else if (from == null) {
-            memoryIterator = pairs.headMap(to).values().iterator();
-        } else if (to == null) {
-            memoryIterator = pairs.tailMap(from).values().iterator();
-        } else {
-            memoryIterator = pairs.subMap(from, to).values().iterator();
-        }
+        Iterator<BaseEntry<byte[]>> memoryIterator = memoryIterator(pairs, from, to);
+        Iterator<BaseEntry<byte[]>> flushingIterator = memoryIterator(flushingPairs, from, to);
         Iterator<BaseEntry<byte[]>> diskIterator = fileOperations.diskIterator(from, to);
         Iterator<BaseEntry<byte[]>> mergeIterator = MergeIterator.of(
                 List.of(
                         new IndexedPeekIterator(0, memoryIterator),
-                        new IndexedPeekIterator(1, diskIterator)
+                        new IndexedPeekIterator(1, flushingIterator),
+                        new IndexedPeekIterator(2, diskIterator)
                 ),
                 EntryKeyComparator.INSTANCE
         );
         return new SkipNullValuesIterator(new IndexedPeekIterator(0, mergeIterator));
     }
 
+    private static Iterator<BaseEntry<byte[]>> memoryIterator(NavigableMap<byte[], BaseEntry<byte[]>> table,
+                                                              byte[] from, byte[] to) {
+        if (from == null && to == null) {
+            return table.values().iterator();
+        } else if (from == null) {
+            return table.headMap(to).values().iterator();
+        } else if (to == null) {
+            return table.tailMap(from).values().iterator();
+        }
+        return table.subMap(from, to).values().iterator();
+    }
+
     @Override
     public BaseEntry<byte[]> get(byte[] key) throws IOException {
-        Iterator<BaseEntry<byte[]>> iterator = get(key, null);
-        if (!iterator.hasNext()) {
-            return null;
+        BaseEntry<byte[]> entry = pairs.get(key);
+        if (entry == null) {
+            entry = flushingPairs.get(key);
         }
-        BaseEntry<byte[]> next = iterator.next();
-        if (Arrays.equals(key, next.key())) {
-            return next;
+        if (entry == null) {
+            entry = fileOperations.get(key);
         }
-        return null;
+        if (entry == null || entry.value() == null) {
+            return null;
+        }
+        return entry;
     }
 
     @Override
     public void upsert(BaseEntry<byte[]> entry) {
-        pairs.put(entry.key(), entry);
+        long size;
+        upsertLock.readLock().lock();
+        try {
+            pairs.put(entry.key(), entry);
+            size = pairsSize.addAndGet(entrySize(entry));
+        } finally {
+            upsertLock.readLock().unlock();
+        }
+        if (size >= flushThresholdBytes) {
+            try {
+                scheduleFlush(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static long entrySize(BaseEntry<byte[]> entry) {
+        long size = 2L * Integer.BYTES + entry.key().length;
+        return entry.value() == null ? size : size + entry.value().length;
+    }
+
+    // Swaps the current table for an empty one and flushes it in the background.
+    // Only one table may be in flight: writers wait for the previous flush here, which bounds the memory
+    private Future<?> scheduleFlush(boolean force) throws IOException {
+        upsertLock.writeLock().lock();
+        try {
+            if (pairs.isEmpty() || !force && pairsSize.get() < flushThresholdBytes) {
+                // Nothing to flush or a concurrent upsert has already swapped the table
+                return flushTask;
+            }
+            await(flushTask);
+            NavigableMap<byte[], BaseEntry<byte[]>> frozenPairs = pairs;
+            flushingPairs = frozenPairs;
+            pairs = new ConcurrentSkipListMap<>(Arrays::compare);
+            pairsSize.set(0);
+            flushTask = flushExecutor.submit(() -> {
+                fileOperations.flush(frozenPairs);
+                flushingPairs = new ConcurrentSkipListMap<>(Arrays::compare);
+                return null;
+            });
+            return flushTask;
+        } finally {
+            upsertLock.writeLock().unlock();
+        }
+    }
+
+    private static void await(Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the flush");
+        } catch (ExecutionException e) {
+            throw new IOException("Background operation failed", e.getCause());
+        }
     }
 
     @Override
     public void flush() throws IOException {
-        if (pairs.size() == 0) {
-            return;
-        }
-        fileOperations.flush(pairs);
+        await(scheduleFlush(true));
     }
 
     @Override
     public void compact() throws IOException {
-        Iterator<BaseEntry<byte[]>> iterator = get(null, null);
-        if (!iterator.hasNext()) {
-            return;
-        }
-        fileOperations.compact(iterator, pairs.size() != 0);
+        await(flushExecutor.submit(() -> {
+            Iterator<BaseEntry<byte[]>> iterator = get(null, null);
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            fileOperations.compact(iterator, !pairs.isEmpty() || !flushingPairs.isEmpty());
+            return null;
+        }));
     }
 
     @Override
     public void close() throws IOException {
         flush();
-        fileOperations.clearFileIterators();
-        pairs.clear();
+        flushExecutor.shutdown();
+        try {
+            if (!flushExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Background operations haven't finished in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing");
+        }
     }
 }
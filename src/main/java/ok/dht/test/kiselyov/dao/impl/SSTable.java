@@ -0,0 +1,23 @@
+package ok.dht.test.kiselyov.dao.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Data and index files mapped once and shared by all readers: they only use absolute reads.
+// The files are closed right after mapping, so tables hold no descriptors
+public record SSTable(Path dataPath, Path indexPath, ByteBuffer data, ByteBuffer index, long size) {
+
+    public static SSTable open(Path dataPath, Path indexPath) throws IOException {
+        ByteBuffer index = map(indexPath);
+        return new SSTable(dataPath, indexPath, map(dataPath), index, index.getLong(0));
+    }
+
+    private static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
@@ -5,10 +5,11 @@ import jdk.incubator.foreign.MemorySegment;
 import jdk.incubator.foreign.ResourceScope;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Iterator;
 
@@ -17,6 +18,7 @@ import static ok.dht.test.kondraev.dao.Files.createFileIfNotExists;
 final class SortedStringTable {
     public static final String INDEX_FILENAME = "index";
     public static final String DATA_FILENAME = "data";
+    private static final long WRITE_BUFFER_SIZE = 1L << 16;
 
     private final MemorySegment dataSegment;
     private final Index index;
@@ -85,17 +87,47 @@ final class SortedStringTable {
         );
     }
 
-    public static void save(
-            Path folderPath,
-            Iterator<MemorySegmentEntry> iterator,
-            ResourceScope scope
-    ) throws IOException {
-        // TODO проблема с загрузкой в память!!
-        ArrayList<MemorySegmentEntry> entries = new ArrayList<>();
-        while (iterator.hasNext()) {
-            entries.add(iterator.next());
+    /**
+     * Writes entries in one pass, memory used doesn't depend on their number.
+     * Data and offsets are appended sequentially, index header is written last,
+     * when the number of entries is known. File format is the same as of
+     * {@link SortedStringTable#save(Path, Collection, ResourceScope)}.
+     */
+    public static void save(Path folderPath, Iterator<MemorySegmentEntry> iterator) throws IOException {
+        Path indexFile = folderPath.resolve(INDEX_FILENAME);
+        Path dataFile = folderPath.resolve(DATA_FILENAME);
+        try (
+                ResourceScope scope = ResourceScope.newConfinedScope();
+                FileChannel dataChannel = FileChannel.open(createFileIfNotExists(dataFile), StandardOpenOption.WRITE);
+                FileChannel indexChannel = FileChannel.open(createFileIfNotExists(indexFile), StandardOpenOption.WRITE)
+        ) {
+            SequentialWriter data = new SequentialWriter(dataChannel, scope);
+            indexChannel.position(Index.HEADER_SIZE);
+            SequentialWriter offsets = new SequentialWriter(indexChannel, scope);
+            int size = 0;
+            boolean hasTombstones = false;
+            long currentOffset = 0L;
+            MemoryAccess.setLong(offsets.reserve(Long.BYTES), currentOffset);
+            while (iterator.hasNext()) {
+                MemorySegmentEntry entry = iterator.next();
+                entry.copyTo(data.reserve(entry.byteSize));
+                currentOffset += entry.byteSize;
+                hasTombstones |= entry.isTombStone();
+                MemoryAccess.setLong(offsets.reserve(Long.BYTES), currentOffset);
+                size++;
+            }
+            data.flush();
+            offsets.flush();
+            MemorySegment header = MemorySegment.allocateNative(Index.HEADER_SIZE, scope);
+            MemoryAccess.setIntAtIndex(header, 0, size);
+            MemoryAccess.setIntAtIndex(header, 1, hasTombstones ? 1 : 0);
+            ByteBuffer headerBuffer = header.asByteBuffer();
+            while (headerBuffer.hasRemaining()) {
+                indexChannel.write(headerBuffer, headerBuffer.position());
+            }
+            dataChannel.force(false);
+            indexChannel.force(false);
         }
-        save(folderPath, entries, scope);
     }
 
     /**
@@ -172,7 +204,49 @@ final class SortedStringTable {
         return becomeSize - was.byteSize;
     }
 
+    /**
+     * Buffers appended bytes and writes them to the channel at its current position.
+     */
+    private static final class SequentialWriter {
+        private final FileChannel channel;
+        private final ResourceScope scope;
+        private MemorySegment buffer;
+        private long buffered;
+
+        SequentialWriter(FileChannel channel, ResourceScope scope) {
+            this.channel = channel;
+            this.scope = scope;
+            buffer = MemorySegment.allocateNative(WRITE_BUFFER_SIZE, scope);
+        }
+
+        /**
+         * Returns segment to be filled, its contents are written to the channel on some later call.
+         */
+        MemorySegment reserve(long size) throws IOException {
+            if (buffered + size > buffer.byteSize()) {
+                flush();
+                if (size > buffer.byteSize()) {
+                    // the previous buffer is freed with the scope, it only happens on entries of record size
+                    buffer = MemorySegment.allocateNative(size, scope);
+                }
+            }
+            MemorySegment reserved = buffer.asSlice(buffered, size);
+            buffered += size;
+            return reserved;
+        }
+
+        void flush() throws IOException {
+            ByteBuffer bytes = buffer.asSlice(0L, buffered).asByteBuffer();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            buffered = 0L;
+        }
+    }
+
     private static class Index {
+        static final long HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+
         final MemorySegment indexSegment;
 
         private Index(MemorySegment indexSegment) {
@@ -197,12 +271,12 @@ final class SortedStringTable {
             MemorySegment indexSegment = MemorySegment.mapFile(
                     createFileIfNotExists(indexFile),
                     0L,
-                    Integer.BYTES + Integer.BYTES + (1L + entries.size()) * Long.BYTES,
+                    HEADER_SIZE + (1L + entries.size()) * Long.BYTES,
                     FileChannel.MapMode.READ_WRITE,
                     scope
             );
             MemoryAccess.setInt(indexSegment, entries.size());
-            MemorySegment offsetsSegment = indexSegment.asSlice(Integer.BYTES + Integer.BYTES);
+            MemorySegment offsetsSegment = indexSegment.asSlice(HEADER_SIZE);
             long currentOffset = 0L;
             long index = 0L;
             MemoryAccess.setLongAtIndex(offsetsSegment, index++, currentOffset);
@@ -218,7 +292,7 @@ final class SortedStringTable {
         }
 
         long entryOffset(long i) {
-            return MemoryAccess.getLongAtOffset(indexSegment, Integer.BYTES + Integer.BYTES + i * Long.BYTES);
+            return MemoryAccess.getLongAtOffset(indexSegment, HEADER_SIZE + i * Long.BYTES);
         }
 
         long entrySize(long i) {
@@ -230,7 +304,7 @@ final class SortedStringTable {
         }
 
         boolean hasTombstones() {
-            return MemoryAccess.getIntAtOffset(indexSegment, 1L) != 0;
+            return MemoryAccess.getIntAtIndex(indexSegment, 1L) != 0;
         }
 
         long dataSize() {
@@ -124,9 +124,7 @@ public class Storage {
     }
 
     public void compact(Iterator<MemorySegmentEntry> data) throws IOException {
-        try (ResourceScope confinedScope = ResourceScope.newConfinedScope()) {
-            SortedStringTable.save(Files.createDirectory(compactDirTmp), data, confinedScope);
-        }
+        SortedStringTable.save(Files.createDirectory(compactDirTmp), data);
         Files.move(compactDirTmp, compactDir, StandardCopyOption.ATOMIC_MOVE);
     }
 
@@ -8,19 +8,24 @@ import ok.dht.kovalenko.dao.aliases.TypedEntry;
 import ok.dht.kovalenko.dao.base.ByteBufferDaoFactory;
 import one.nio.http.HttpServer;
 import one.nio.http.HttpServerConfig;
+import one.nio.http.HttpSession;
 import one.nio.http.Param;
 import one.nio.http.Path;
 import one.nio.http.Request;
 import one.nio.http.RequestMethod;
 import one.nio.http.Response;
 import one.nio.server.AcceptorConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 public class MyService implements Service {
 
+    private static final Logger LOG = LoggerFactory.getLogger(MyService.class);
     private static final ByteBufferDaoFactory daoFactory = new ByteBufferDaoFactory();
     private final ServiceConfig config;
     private LSMDao dao;
@@ -59,40 +64,93 @@ public class MyService implements Service {
         return CompletableFuture.completedFuture(null);
     }
 
+    // Handlers only schedule the dao operation: selector threads never wait for the disk
     @Path("/v0/entity")
     @RequestMethod(Request.METHOD_GET)
-    public Response handleGet(@Param(value = "id") String id) throws IOException {
+    public void handleGet(@Param(value = "id") String id, HttpSession session) throws IOException {
         if (id == null || id.isEmpty()) {
-            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
         }
         ByteBuffer key = daoFactory.fromString(id);
-        TypedEntry res = this.dao.get(key);
-        if (res == null) {
-            return new Response(Response.NOT_FOUND, Response.EMPTY);
+        try {
+            this.dao.getAsync(key).whenComplete((res, e) -> {
+                if (e != null) {
+                    sendError(session, e);
+                } else if (res == null) {
+                    sendResponse(session, new Response(Response.NOT_FOUND, Response.EMPTY));
+                } else {
+                    sendResponse(session, Response.ok(toBytes(res.value())));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            session.sendResponse(new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
         }
-        return Response.ok(res.value().array());
     }
 
     @Path("/v0/entity")
     @RequestMethod(Request.METHOD_PUT)
-    public Response handlePut(Request request, @Param(value = "id") String id) {
+    public void handlePut(Request request, @Param(value = "id") String id, HttpSession session)
+            throws IOException {
         if (id == null || id.isEmpty()) {
-            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
         }
         ByteBuffer key = daoFactory.fromString(id);
         ByteBuffer value = ByteBuffer.wrap(request.getBody());
-        this.dao.upsert(new TypedBaseEntry(key, value));
-        return new Response(Response.CREATED, Response.EMPTY);
+        upsert(new TypedBaseEntry(key, value), new Response(Response.CREATED, Response.EMPTY), session);
     }
 
     @Path("/v0/entity")
     @RequestMethod(Request.METHOD_DELETE)
-    public Response handleDelete(@Param(value = "id") String id) {
+    public void handleDelete(@Param(value = "id") String id, HttpSession session) throws IOException {
         if (id == null || id.isEmpty()) {
-            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
         }
         ByteBuffer key = daoFactory.fromString(id);
-        this.dao.upsert(new TypedBaseEntry(key, null));
-        return new Response(Response.ACCEPTED, Response.EMPTY);
+        upsert(new TypedBaseEntry(key, null), new Response(Response.ACCEPTED, Response.EMPTY), session);
+    }
+
+    private void upsert(TypedEntry entry, Response response, HttpSession session) throws IOException {
+        try {
+            this.dao.upsertAsync(entry).whenComplete((ignored, e) -> {
+                if (e == null) {
+                    sendResponse(session, response);
+                } else if (e.getCause() instanceof RejectedExecutionException) {
+                    // The flusher has stalled for longer than the dao lets writes wait
+                    sendResponse(session, new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+                } else {
+                    sendError(session, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            session.sendResponse(new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+        }
+    }
+
+    // Disk hits may be direct buffers or slices, so the backing array can't be taken as it is
+    private static byte[] toBytes(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static void sendError(HttpSession session, Throwable e) {
+        LOG.error("Unexpected error", e);
+        sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+    }
+
+    private static void sendResponse(HttpSession session, Response response) {
+        try {
+            session.sendResponse(response);
+        } catch (IOException e) {
+            LOG.error("Unable to send response", e);
+            session.close();
+        }
     }
 }
@@ -0,0 +1,46 @@
+package ok.dht.test.lutsenko.dao;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Выбирает для фоновой compaction несколько соседних по номеру файлов близкого размера.
+ * Идем от самого нового файла к старым и добавляем следующий (более старый) файл,
+ * пока он не больше SIZE_RATIO суммарных размеров уже выбранных и их не больше MAX_FILES.
+ * Так новые мелкие файлы сливаются между собой, а большой старый файл переписывается,
+ * только когда над ним накопилось сравнимое количество данных. Файлов на диске остается O(log(размер)).
+ */
+public final class CompactionPolicy {
+
+    public static final int MIN_FILES = 2;
+    public static final int MAX_FILES = 4;
+    public static final double SIZE_RATIO = 2;
+
+    private CompactionPolicy() {
+    }
+
+    /**
+     * files - по возрастанию номера. Возвращает подсписок соседних файлов или пустой список.
+     */
+    public static List<Map.Entry<Path, FileInfo>> pickFiles(List<Map.Entry<Path, FileInfo>> files) {
+        for (int newest = files.size() - 1; newest >= MIN_FILES - 1; newest--) {
+            long size = sizeOf(files.get(newest));
+            int oldest = newest;
+            while (oldest > 0 && newest - oldest + 1 < MAX_FILES
+                    && sizeOf(files.get(oldest - 1)) <= size * SIZE_RATIO) {
+                oldest--;
+                size += sizeOf(files.get(oldest));
+            }
+            if (newest - oldest + 1 >= MIN_FILES) {
+                return files.subList(oldest, newest + 1);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private static long sizeOf(Map.Entry<Path, FileInfo> file) {
+        return file.getValue().mappedByteBuffer.capacity();
+    }
+}
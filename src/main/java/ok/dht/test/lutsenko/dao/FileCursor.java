@@ -0,0 +1,26 @@
+package ok.dht.test.lutsenko.dao;
+
+/**
+ * Позиция чтения в data одного файла. FileInfo общий и неизменяемый,
+ * а курсор у каждого читателя свой, поэтому читать файл можно из многих потоков одновременно.
+ */
+public class FileCursor {
+    public final FileInfo fileInfo;
+    private int position;
+
+    public FileCursor(FileInfo fileInfo) {
+        this.fileInfo = fileInfo;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    public void moveTo(int position) {
+        this.position = position;
+    }
+
+    public boolean isEnd() {
+        return position == fileInfo.data.limit();
+    }
+}
@@ -1,15 +1,46 @@
 package ok.dht.test.lutsenko.dao;
 
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 
+import static ok.dht.test.lutsenko.dao.DaoUtils.BYTES_IN_INT;
+import static ok.dht.test.lutsenko.dao.DaoUtils.TRAILER_SIZE;
+
 public class FileInfo {
     public final int fileNumber;
     public final MappedByteBuffer mappedByteBuffer;
-    public final ThreadLocal<Integer> position;
+    public final ByteBuffer data; // только entry, без footer-а
+    public final int entriesCount;
+    public final byte[] minKey;
+    public final byte[] maxKey;
+    private final int indexStart;
 
-    public FileInfo(int fileNumber, MappedByteBuffer mappedByteBuffer, ThreadLocal<Integer> position) {
+    public FileInfo(int fileNumber, MappedByteBuffer mappedByteBuffer) {
+        if (!DaoUtils.hasFooter(mappedByteBuffer)) {
+            // Файлы исходного формата переписываются при открытии dao (см. LegacyFormat), других без footer-а нет
+            throw new IllegalStateException("Unknown file format: no footer in file " + fileNumber);
+        }
         this.fileNumber = fileNumber;
         this.mappedByteBuffer = mappedByteBuffer;
-        this.position = position;
+        int trailerStart = mappedByteBuffer.limit() - TRAILER_SIZE;
+        int dataEnd = mappedByteBuffer.getInt(trailerStart);
+        this.data = mappedByteBuffer.slice(0, dataEnd);
+        this.entriesCount = mappedByteBuffer.getInt(trailerStart + BYTES_IN_INT);
+        int formatVersion = mappedByteBuffer.getInt(trailerStart + 2 * BYTES_IN_INT);
+        if (formatVersion != DaoUtils.FORMAT_VERSION) {
+            throw new IllegalStateException("Unsupported file format version " + formatVersion);
+        }
+        this.indexStart = dataEnd;
+        int minKeyPosition = dataEnd + entriesCount * BYTES_IN_INT;
+        this.minKey = entriesCount == 0 ? null : DaoUtils.readKey(mappedByteBuffer, minKeyPosition);
+        this.maxKey = entriesCount == 0 ? null
+                : DaoUtils.readKey(mappedByteBuffer, minKeyPosition + BYTES_IN_INT + minKey.length);
+    }
+
+    /**
+     * Смещение начала entry с номером i в data.
+     */
+    public int offset(int i) {
+        return mappedByteBuffer.getInt(indexStart + i * BYTES_IN_INT);
     }
 }
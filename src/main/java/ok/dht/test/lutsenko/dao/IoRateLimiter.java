@@ -0,0 +1,36 @@
+package ok.dht.test.lutsenko.dao;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ограничивает скорость записи: перед записью очередной порции байт ждет,
+ * пока средняя скорость с начала записи не опустится до bytesPerSecond.
+ * Создается на каждую запись, поэтому простой между записями не копится в запас.
+ */
+public class IoRateLimiter {
+
+    private final long bytesPerSecond;
+    private final long startNanos = System.nanoTime();
+    private long acquiredBytes;
+
+    public IoRateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public static IoRateLimiter unlimited() {
+        return new IoRateLimiter(0);
+    }
+
+    public void acquire(int bytes) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        acquiredBytes += bytes;
+        long allowedNanos = TimeUnit.SECONDS.toNanos(1) * acquiredBytes / bytesPerSecond;
+        long aheadNanos = allowedNanos - (System.nanoTime() - startNanos);
+        if (aheadNanos > 0) {
+            LockSupport.parkNanos(aheadNanos);
+        }
+    }
+}
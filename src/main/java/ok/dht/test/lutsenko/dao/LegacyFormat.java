@@ -0,0 +1,157 @@
+package ok.dht.test.lutsenko.dao;
+
+import ok.dht.test.lutsenko.dao.common.BaseEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static ok.dht.test.lutsenko.dao.DaoUtils.BYTES_IN_INT;
+import static ok.dht.test.lutsenko.dao.DaoUtils.KEY_COMPARATOR;
+
+/**
+ * Чтение файлов в исходном текстовом формате (до перехода на байты), чтобы перевести их в текущий формат.
+ * Формат исходного файла (все числа - int):
+ * - 0 (длина "предыдущей" записи)
+ * - В цикле для всех entry: длина ключа, ключ, EXISTING_MARK (1) или DELETED_MARK (0),
+ * для существующей entry длина значения и значение, '\n', размер записи
+ * Ключи и значения - строки в UTF-8, в которых '\n' и '\\' экранированы обратным слэшем,
+ * значения - Base64 от тела запроса (так их сохранял DaoHttpServer).
+ * Размер записи при чтении не используется: для удаленных entry он был посчитан с лишним int.
+ */
+public final class LegacyFormat {
+
+    private static final int LEGACY_DELETED_MARK = 0;
+    private static final int LEGACY_EXISTING_MARK = 1;
+    private static final byte NEXT_LINE_BYTE = (byte) '\n';
+    private static final byte ESCAPE_BYTE = (byte) '\\';
+
+    private LegacyFormat() {
+    }
+
+    /**
+     * Файл текущего формата всегда заканчивается footer-ом, а исходный начинается с нулевого int.
+     * Последние байты исходного файла - '\n' и int, поэтому FOOTER_MAGIC в нем встретиться не может.
+     */
+    public static boolean isLegacy(ByteBuffer byteBuffer) {
+        return !DaoUtils.hasFooter(byteBuffer)
+                && byteBuffer.limit() >= BYTES_IN_INT && byteBuffer.getInt(0) == 0;
+    }
+
+    /**
+     * Переписывает файл исходного формата в target в текущем формате.
+     */
+    public static void migrate(ByteBuffer byteBuffer, Path target) throws IOException {
+        if (isSorted(byteBuffer)) {
+            DaoUtils.writeToFile(target, new LegacyIterator(byteBuffer));
+            return;
+        }
+        // Исходный файл упорядочен по строкам (UTF-16), текущий - по байтам, порядки расходятся редко
+        NavigableMap<byte[], BaseEntry<byte[]>> entries = new TreeMap<>(KEY_COMPARATOR);
+        Iterator<BaseEntry<byte[]>> iterator = new LegacyIterator(byteBuffer);
+        while (iterator.hasNext()) {
+            BaseEntry<byte[]> entry = iterator.next();
+            entries.put(entry.key(), entry);
+        }
+        DaoUtils.writeToFile(target, entries.values().iterator());
+    }
+
+    private static boolean isSorted(ByteBuffer byteBuffer) {
+        LegacyIterator iterator = new LegacyIterator(byteBuffer);
+        byte[] previousKey = null;
+        while (iterator.hasNext()) {
+            byte[] key = iterator.next().key();
+            if (previousKey != null && KEY_COMPARATOR.compare(previousKey, key) >= 0) {
+                return false;
+            }
+            previousKey = key;
+        }
+        return true;
+    }
+
+    private static final class LegacyIterator implements Iterator<BaseEntry<byte[]>> {
+
+        private final ByteBuffer byteBuffer;
+        private int position = BYTES_IN_INT; // пропускаем начальный 0
+
+        private LegacyIterator(ByteBuffer byteBuffer) {
+            this.byteBuffer = byteBuffer;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < byteBuffer.limit();
+        }
+
+        @Override
+        public BaseEntry<byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            byte[] key = unescape(readBytes());
+            int mark = readInt();
+            byte[] value;
+            if (mark == LEGACY_EXISTING_MARK) {
+                value = Base64.getDecoder().decode(unescape(readBytes()));
+            } else if (mark == LEGACY_DELETED_MARK) {
+                value = null;
+            } else {
+                throw new IllegalStateException("Corrupted legacy file: unknown mark " + mark + " at " + position);
+            }
+            if (position >= byteBuffer.limit() || byteBuffer.get(position) != NEXT_LINE_BYTE) {
+                throw new IllegalStateException("Corrupted legacy file: no line end at " + position);
+            }
+            position += 1 + BYTES_IN_INT; // '\n' и размер записи
+            return new BaseEntry<>(key, value);
+        }
+
+        private int readInt() {
+            if (position + BYTES_IN_INT > byteBuffer.limit()) {
+                throw new IllegalStateException("Corrupted legacy file: truncated at " + position);
+            }
+            int value = byteBuffer.getInt(position);
+            position += BYTES_IN_INT;
+            return value;
+        }
+
+        private byte[] readBytes() {
+            int length = readInt();
+            if (length < 0 || length > byteBuffer.limit() - position) {
+                throw new IllegalStateException("Corrupted legacy file: length " + length + " at " + position);
+            }
+            byte[] bytes = new byte[length];
+            byteBuffer.get(position, bytes);
+            position += length;
+            return bytes;
+        }
+    }
+
+    // Обратное к экранированию: "\\n" -> '\n', "\\\\" -> '\\'. Байты UTF-8 остаются как есть
+    private static byte[] unescape(byte[] bytes) {
+        int i = 0;
+        while (i < bytes.length && bytes[i] != ESCAPE_BYTE) {
+            i++;
+        }
+        if (i == bytes.length) {
+            return bytes;
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length);
+        result.write(bytes, 0, i);
+        while (i < bytes.length) {
+            if (bytes[i] == ESCAPE_BYTE && i + 1 < bytes.length) {
+                result.write(bytes[i + 1] == (byte) 'n' ? NEXT_LINE_BYTE : ESCAPE_BYTE);
+                i += 2;
+            } else {
+                result.write(bytes[i]);
+                i++;
+            }
+        }
+        return result.toByteArray();
+    }
+}
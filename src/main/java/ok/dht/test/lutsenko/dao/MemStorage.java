@@ -2,6 +2,7 @@ package ok.dht.test.lutsenko.dao;
 
 import ok.dht.test.lutsenko.dao.common.BaseEntry;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.NavigableMap;
@@ -19,12 +20,23 @@ public class MemStorage {
         this.tableMaxBytesSize = tableMaxBytesSize;
     }
 
-    public void upsertToSecondTable(BaseEntry<String> entry, int entryBytes) {
+    /**
+     * Возвращает false, если во второй таблице нет места, тогда надо дождаться flush первой.
+     */
+    public boolean upsertToSecondTable(BaseEntry<byte[]> entry, int entryBytes) {
         if (secondTable.getBytes().addAndGet(entryBytes) < tableMaxBytesSize) {
             secondTable.put(entry);
-        } else {
-            rejectUpsert();
+            return true;
         }
+        secondTable.getBytes().addAndGet(-entryBytes);
+        return false;
+    }
+
+    /**
+     * Доля заполнения второй таблицы, пока первая на flush-е, иначе 0.
+     */
+    public double secondTableFill() {
+        return firstTable.onFlush().get() ? (double) secondTable.getBytes().get() / tableMaxBytesSize : 0;
     }
 
     public AtomicLong firstTableBytes() {
@@ -35,7 +47,7 @@ public class MemStorage {
         return firstTable.onFlush();
     }
 
-    public void putFirstTable(BaseEntry<String> entry) {
+    public void putFirstTable(BaseEntry<byte[]> entry) {
         firstTable.put(entry);
     }
 
@@ -52,21 +64,17 @@ public class MemStorage {
         return firstTable.isEmpty() && secondTable.isEmpty();
     }
 
-    public void rejectUpsert() {
-        throw new RuntimeException("Can`t upsert now, try later");
-    }
-
-    public Iterator<BaseEntry<String>> firstTableIterator(String from, String to) {
+    public Iterator<BaseEntry<byte[]>> firstTableIterator(byte[] from, byte[] to) {
         return firstTable.iterator(from, to);
     }
 
-    public Iterator<BaseEntry<String>> secondTableIterator(String from, String to) {
+    public Iterator<BaseEntry<byte[]>> secondTableIterator(byte[] from, byte[] to) {
         return secondTable.iterator(from, to);
     }
 
-    public Iterator<BaseEntry<String>> iterator(String from, String to) {
-        Iterator<BaseEntry<String>> firstTableIterator = firstTable.iterator(from, to);
-        Iterator<BaseEntry<String>> secondTableIterator = secondTable.iterator(from, to);
+    public Iterator<BaseEntry<byte[]>> iterator(byte[] from, byte[] to) {
+        Iterator<BaseEntry<byte[]>> firstTableIterator = firstTable.iterator(from, to);
+        Iterator<BaseEntry<byte[]>> secondTableIterator = secondTable.iterator(from, to);
         if (!firstTableIterator.hasNext() && !secondTableIterator.hasNext()) {
             return Collections.emptyIterator();
         }
@@ -78,11 +86,11 @@ public class MemStorage {
         }
         return new Iterator<>() {
 
-            private BaseEntry<String> firstTableEntry = firstTableIterator.next();
-            private BaseEntry<String> secondTableEntry = secondTableIterator.next();
-            private String firstTableLastReadKey = firstTableEntry.key();
-            private String secondTableLastReadKey = secondTableEntry.key();
-            private final NavigableMap<String, BaseEntry<String>> tempData = mapWithTwoEntries(
+            private BaseEntry<byte[]> firstTableEntry = firstTableIterator.next();
+            private BaseEntry<byte[]> secondTableEntry = secondTableIterator.next();
+            private byte[] firstTableLastReadKey = firstTableEntry.key();
+            private byte[] secondTableLastReadKey = secondTableEntry.key();
+            private final NavigableMap<byte[], BaseEntry<byte[]>> tempData = mapWithTwoEntries(
                     firstTableEntry,
                     secondTableEntry
             );
@@ -93,14 +101,14 @@ public class MemStorage {
             }
 
             @Override
-            public BaseEntry<String> next() {
-                BaseEntry<String> removed = tempData.pollFirstEntry().getValue();
-                if (removed.key().equals(firstTableLastReadKey) && firstTableIterator.hasNext()) {
+            public BaseEntry<byte[]> next() {
+                BaseEntry<byte[]> removed = tempData.pollFirstEntry().getValue();
+                if (Arrays.equals(removed.key(), firstTableLastReadKey) && firstTableIterator.hasNext()) {
                     firstTableEntry = firstTableIterator.next();
-                    tempData.put(firstTableEntry.key(), firstTableEntry);
+                    tempData.putIfAbsent(firstTableEntry.key(), firstTableEntry); // вторая таблица новее
                     firstTableLastReadKey = firstTableEntry.key();
                 }
-                if (removed.key().equals(secondTableLastReadKey) && secondTableIterator.hasNext()) {
+                if (Arrays.equals(removed.key(), secondTableLastReadKey) && secondTableIterator.hasNext()) {
                     secondTableEntry = secondTableIterator.next();
                     tempData.put(secondTableEntry.key(), secondTableEntry);
                     secondTableLastReadKey = secondTableEntry.key();
@@ -110,8 +118,8 @@ public class MemStorage {
         };
     }
 
-    private NavigableMap<String, BaseEntry<String>> mapWithTwoEntries(BaseEntry<String> e1, BaseEntry<String> e2) {
-        NavigableMap<String, BaseEntry<String>> map = new TreeMap<>();
+    private NavigableMap<byte[], BaseEntry<byte[]>> mapWithTwoEntries(BaseEntry<byte[]> e1, BaseEntry<byte[]> e2) {
+        NavigableMap<byte[], BaseEntry<byte[]>> map = new TreeMap<>(DaoUtils.KEY_COMPARATOR);
         map.put(e1.key(), e1);
         map.put(e2.key(), e2);
         return map;
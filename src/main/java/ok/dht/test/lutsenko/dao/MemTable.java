@@ -9,11 +9,12 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public class MemTable {
 
-    private final ConcurrentSkipListMap<String, BaseEntry<String>> data = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<byte[], BaseEntry<byte[]>> data =
+            new ConcurrentSkipListMap<>(DaoUtils.KEY_COMPARATOR);
     private final AtomicLong bytes = new AtomicLong();
     private final AtomicBoolean onFlush = new AtomicBoolean(false);
 
-    public Iterator<BaseEntry<String>> iterator(String from, String to) {
+    public Iterator<BaseEntry<byte[]>> iterator(byte[] from, byte[] to) {
         if (from == null && to == null) {
             return data.values().iterator();
         }
@@ -26,7 +27,7 @@ public class MemTable {
         return data.subMap(from, to).values().iterator();
     }
 
-    public void put(BaseEntry<String> entry) {
+    public void put(BaseEntry<byte[]> entry) {
         data.put(entry.key(), entry);
     }
 
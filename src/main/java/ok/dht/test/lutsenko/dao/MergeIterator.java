@@ -3,10 +3,10 @@ package ok.dht.test.lutsenko.dao;
 import ok.dht.test.lutsenko.dao.common.BaseEntry;
 
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -14,46 +14,33 @@ import java.util.NavigableMap;
 import java.util.TreeMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
-public class MergeIterator implements Iterator<BaseEntry<String>> {
+public class MergeIterator implements Iterator<BaseEntry<byte[]>> {
 
-    private final NavigableMap<String, BaseEntry<String>> tempData = new TreeMap<>();
-    private final Map<String, Integer> tempDataPriorities = new HashMap<>();
-    private final Map<String, CopyOnWriteArrayList<FileInfo>> lastElementWithFilesMap = new HashMap<>();
+    private final NavigableMap<byte[], BaseEntry<byte[]>> tempData = new TreeMap<>(DaoUtils.KEY_COMPARATOR);
+    private final Map<byte[], Integer> tempDataPriorities = new TreeMap<>(DaoUtils.KEY_COMPARATOR);
+    private final Map<byte[], CopyOnWriteArrayList<FileCursor>> lastElementWithFilesMap =
+            new TreeMap<>(DaoUtils.KEY_COMPARATOR);
     private final List<Map.Entry<Path, FileInfo>> fileInfos = new CopyOnWriteArrayList<>();
-    private final Iterator<BaseEntry<String>> inMemoryIterator;
-    private final String to;
+    private final Iterator<BaseEntry<byte[]>> inMemoryIterator;
+    private final byte[] to;
     private final boolean isFromNull;
     private final boolean isToNull;
-    private String inMemoryLastKey;
-    private BaseEntry<String> polledEntry;
+    private final boolean includingTombstones;
+    private byte[] inMemoryLastKey;
+    private BaseEntry<byte[]> polledEntry;
     private boolean hasNextCalled;
     private boolean hasNextResult;
 
-    public MergeIterator(PersistenceRangeDao dao, String from, String to, boolean includingMemory) {
+    public MergeIterator(PersistenceRangeDao dao, byte[] from, byte[] to, boolean includingMemory) {
         this.to = to;
         this.isFromNull = from == null;
         this.isToNull = to == null;
-        this.fileInfos.addAll(dao.getFileInfosMap().entrySet());
-        int priority = 1;
-        for (Map.Entry<Path, FileInfo> fileInfosMapEntry : fileInfos) {
-            fileInfosMapEntry.getValue().position.set(0);
-            MappedByteBuffer mappedByteBuffer = fileInfosMapEntry.getValue().mappedByteBuffer;
-            BaseEntry<String> firstEntry = isFromNull
-                    ? DaoUtils.readEntry(mappedByteBuffer, fileInfosMapEntry.getValue().position)
-                    : DaoUtils.ceilKey(mappedByteBuffer, from, fileInfosMapEntry.getValue().position);
-            if (firstEntry != null && (isToNull || firstEntry.key().compareTo(to) < 0)) {
-                tempData.put(firstEntry.key(), firstEntry);
-                tempDataPriorities.put(firstEntry.key(), priority);
-                lastElementWithFilesMap
-                        .computeIfAbsent(firstEntry.key(), files -> new CopyOnWriteArrayList<>())
-                        .add(fileInfosMapEntry.getValue());
-                priority++;
-            }
-        }
+        this.includingTombstones = false;
+        addFiles(dao.getFileInfosMap().entrySet(), from);
         if (includingMemory) {
             inMemoryIterator = dao.inMemoryDataIterator(from, to);
             if (inMemoryIterator.hasNext()) {
-                BaseEntry<String> entry = inMemoryIterator.next();
+                BaseEntry<byte[]> entry = inMemoryIterator.next();
                 tempData.put(entry.key(), entry);
                 tempDataPriorities.put(entry.key(), Integer.MAX_VALUE);
                 inMemoryLastKey = entry.key();
@@ -63,6 +50,37 @@ public class MergeIterator implements Iterator<BaseEntry<String>> {
         }
     }
 
+    /**
+     * Для compaction: все entry указанных файлов без памяти.
+     * Удаленные entry остаются, если includingTombstones - ими перекрываются файлы старше указанных.
+     */
+    public MergeIterator(List<Map.Entry<Path, FileInfo>> files, boolean includingTombstones) {
+        this.to = null;
+        this.isFromNull = true;
+        this.isToNull = true;
+        this.includingTombstones = includingTombstones;
+        addFiles(files, null);
+        this.inMemoryIterator = Collections.emptyIterator();
+    }
+
+    private void addFiles(Collection<Map.Entry<Path, FileInfo>> files, byte[] from) {
+        this.fileInfos.addAll(files);
+        for (Map.Entry<Path, FileInfo> fileInfosMapEntry : fileInfos) {
+            FileCursor cursor = new FileCursor(fileInfosMapEntry.getValue());
+            BaseEntry<byte[]> firstEntry = isFromNull
+                    ? DaoUtils.readEntry(cursor)
+                    : DaoUtils.ceilKey(cursor, from);
+            if (firstEntry != null && isBeforeTo(firstEntry.key())) {
+                tempData.put(firstEntry.key(), firstEntry);
+                // Файлы идут по возрастанию номера, поэтому более новый файл перезаписывает старый
+                tempDataPriorities.put(firstEntry.key(), cursor.fileInfo.fileNumber);
+                lastElementWithFilesMap
+                        .computeIfAbsent(firstEntry.key(), cursors -> new CopyOnWriteArrayList<>())
+                        .add(cursor);
+            }
+        }
+    }
+
     @Override
     public boolean hasNext() {
         if (hasNextCalled) {
@@ -77,53 +95,54 @@ public class MergeIterator implements Iterator<BaseEntry<String>> {
                 readNextFromFiles(lastElementWithFilesMap.get(polledEntry.key()));
                 readNextFromMemory();
                 tempDataPriorities.remove(polledEntry.key());
-            } while (!tempData.isEmpty() && polledEntry.value() == null);
+            } while (!tempData.isEmpty() && polledEntry.value() == null && !includingTombstones);
         } catch (IOException e) {
             throw new RuntimeException("Fail to read new Entry after" + polledEntry, e);
         }
         hasNextCalled = true;
-        hasNextResult = polledEntry.value() != null && (isToNull || polledEntry.key().compareTo(to) < 0);
+        hasNextResult = (polledEntry.value() != null || includingTombstones) && isBeforeTo(polledEntry.key());
         return hasNextResult;
     }
 
     @Override
-    public BaseEntry<String> next() {
-        if (hasNextCalled && hasNextResult) {
-            hasNextCalled = false;
-            return polledEntry;
-        }
-        if (!hasNextCalled && hasNext()) {
-            return polledEntry;
+    public BaseEntry<byte[]> next() {
+        if (!hasNext()) {
+            return null;
         }
-        return null;
+        hasNextCalled = false;
+        return polledEntry;
+    }
+
+    private boolean isBeforeTo(byte[] key) {
+        return isToNull || DaoUtils.KEY_COMPARATOR.compare(key, to) < 0;
     }
 
     private void readNextFromMemory() {
-        if (inMemoryIterator.hasNext() && inMemoryLastKey.equals(polledEntry.key())) {
-            BaseEntry<String> newEntry = inMemoryIterator.next();
+        if (inMemoryIterator.hasNext() && Arrays.equals(inMemoryLastKey, polledEntry.key())) {
+            BaseEntry<byte[]> newEntry = inMemoryIterator.next();
             tempData.put(newEntry.key(), newEntry);
             tempDataPriorities.put(newEntry.key(), Integer.MAX_VALUE);
             inMemoryLastKey = newEntry.key();
         }
     }
 
-    private void readNextFromFiles(List<FileInfo> filesToRead) throws IOException {
+    private void readNextFromFiles(List<FileCursor> filesToRead) throws IOException {
         if (filesToRead == null) {
             return;
         }
-        for (FileInfo fileInfo : filesToRead) {
-            BaseEntry<String> newEntry = DaoUtils.readEntry(fileInfo.mappedByteBuffer, fileInfo.position);
+        for (FileCursor cursor : filesToRead) {
+            BaseEntry<byte[]> newEntry = DaoUtils.readEntry(cursor);
             if (newEntry == null) {
                 continue;
             }
             Integer currentFileNumber = tempDataPriorities.get(newEntry.key());
-            if (currentFileNumber == null || fileInfo.fileNumber > currentFileNumber) {
+            if (currentFileNumber == null || cursor.fileInfo.fileNumber > currentFileNumber) {
                 tempData.put(newEntry.key(), newEntry);
-                tempDataPriorities.put(newEntry.key(), fileInfo.fileNumber);
+                tempDataPriorities.put(newEntry.key(), cursor.fileInfo.fileNumber);
             }
             lastElementWithFilesMap
                     .computeIfAbsent(newEntry.key(), files -> new CopyOnWriteArrayList<>())
-                    .add(fileInfo);
+                    .add(cursor);
         }
         lastElementWithFilesMap.remove(polledEntry.key());
     }
@@ -9,6 +9,8 @@ import java.nio.MappedByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
@@ -16,6 +18,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -28,39 +31,44 @@ import static ok.dht.test.lutsenko.dao.DaoUtils.unmap;
 
 /**
  * ----------------------------------------------------------------------------------------------*
- * Описание формата файла.
- * - Минимальный ключ во всем файле
- * - Максимальный ключ во всем файле
- * - 0 - Длина предыдущей entry для первой entry
- * - В цикле для всех entry:
+ * Описание формата файла (все числа - int, ключи и значения - байты как есть, без экранирования).
+ * - В цикле для всех entry по возрастанию ключа:
  * - Длина ключа
  * - Ключ
- * - EXISTING_MARK или DELETED_MARK
+ * - Длина значения или DELETED_MARK (-1) для удаленной entry
  * - Значение, если не равно null
- * -'\n'
- * - Длина всего записанного + размер самого числа относительно типа char
+ * Footer:
+ * - Смещения начал всех entry (индекс фиксированной ширины)
+ * - Минимальный ключ во всем файле (длина и ключ), если файл не пустой
+ * - Максимальный ключ во всем файле (длина и ключ), если файл не пустой
+ * - Конец entry (он же начало индекса), количество entry, FORMAT_VERSION, FOOTER_MAGIC (long)
  * Пример (пробелы и переносы строк для наглядности):
- * k2 k55
- * 0 2 k2 1 v2 '\n'
- * 10 3 k40 1 v40 '\n'
- * 12 3 k55 1 v5555 '\n'
- * 14 5 ka123 0 '\n'
- * 11
+ * 2 k2 2 v2
+ * 3 k40 3 v40
+ * 3 k55 5 v5555
+ * 5 ka123 -1
+ * 0 12 26 42
+ * 2 k2 5 ka123
+ * 55 4 1 FOOTER_MAGIC
+ * Поиск бинарный по индексу (см. DaoUtils.ceilKey).
+ * Файлы исходного текстового формата переписываются в текущий при открытии dao (см. LegacyFormat).
  * ----------------------------------------------------------------------------------------------*
  **/
-public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
+public class PersistenceRangeDao implements Dao<byte[], BaseEntry<byte[]>> {
 
     public static final String DATA_FILE_NAME = "daoData";
     public static final String MEMORY_FILE_NAME = "memory";
     public static final String COMPACTION_FILE_NAME = "compaction";
     public static final String DATA_FILE_EXTENSION = ".txt";
     public static final String TEMP_FILE_EXTENSION = ".tmp";
+    public static final long COMPACTION_BYTES_PER_SECOND = 32L * 1024 * 1024;
     private final AtomicInteger tmpCounter = new AtomicInteger(0);
     private final AtomicInteger currentFileNumber = new AtomicInteger(0);
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
     private final AtomicBoolean isClosed = new AtomicBoolean(false);
     private final DaoConfig daoConfig;
     private final MemStorage memStorage;
+    private final WriteStall writeStall = new WriteStall();
     private final ConcurrentSkipListMap<Path, FileInfo> filesMap = new ConcurrentSkipListMap<>(
             Comparator.comparingInt(this::getFileNumber)
     );
@@ -74,9 +82,11 @@ public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
                 (p, a) -> a.isRegularFile() && p.getFileName().toString().endsWith(DATA_FILE_EXTENSION))) {
             List<Path> paths = stream.toList();
             for (Path path : paths) {
-                ThreadLocal<Integer> position = new ThreadLocal<>();
-                position.set(0);
-                filesMap.put(path, new FileInfo(getFileNumber(path), mapFile(path), position));
+                MappedByteBuffer mappedByteBuffer = mapFile(path);
+                if (LegacyFormat.isLegacy(mappedByteBuffer)) {
+                    mappedByteBuffer = migrate(path, mappedByteBuffer);
+                }
+                filesMap.put(path, new FileInfo(getFileNumber(path), mappedByteBuffer));
             }
             currentFileNumber.set(filesMap.isEmpty() ? 0 : getFileNumber(filesMap.lastKey()) + 1);
         } catch (NoSuchFileException e) {
@@ -85,8 +95,17 @@ public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
         }
     }
 
+    // Файл исходного текстового формата переписывается в текущий формат под тем же именем
+    private MappedByteBuffer migrate(Path path, MappedByteBuffer legacyMappedByteBuffer) throws IOException {
+        Path tempPath = generateTempPath(DATA_FILE_NAME);
+        LegacyFormat.migrate(legacyMappedByteBuffer, tempPath);
+        unmap(legacyMappedByteBuffer); // читателей у dao еще нет
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return mapFile(path);
+    }
+
     @Override
-    public Iterator<BaseEntry<String>> get(String from, String to) {
+    public Iterator<BaseEntry<byte[]>> get(byte[] from, byte[] to) {
         checkNotClosed();
         lock.readLock().lock();
         try {
@@ -97,24 +116,55 @@ public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
     }
 
     @Override
-    public void upsert(BaseEntry<String> entry) {
+    public BaseEntry<byte[]> get(byte[] key) {
+        Iterator<BaseEntry<byte[]>> iterator = get(key, null);
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        BaseEntry<byte[]> next = iterator.next();
+        return Arrays.equals(next.key(), key) ? next : null;
+    }
+
+    @Override
+    public void upsert(BaseEntry<byte[]> entry) {
         checkNotClosed();
         int entryBytes = DaoUtils.bytesOf(entry);
-        lock.readLock().lock();
-        try {
-            if (memStorage.firstTableOnFlush().get()) {
-                memStorage.upsertToSecondTable(entry, entryBytes);
-            } else if (memStorage.firstTableBytes().addAndGet(entryBytes) < daoConfig.flushThresholdBytes()) {
-                memStorage.putFirstTable(entry);
-            } else {
-                if (memStorage.firstTableNotOnFlushAndSetTrue()) {
-                    flushFirstMemTable();
+        long deadline = System.nanoTime() + WriteStall.MAX_STALL_NANOS;
+        while (true) {
+            long flushesCount = writeStall.flushesCount();
+            lock.readLock().lock();
+            try {
+                if (tryUpsert(entry, entryBytes)) {
+                    break;
                 }
-                memStorage.upsertToSecondTable(entry, entryBytes);
+            } finally {
+                lock.readLock().unlock();
             }
-        } finally {
-            lock.readLock().unlock();
+            // Обе таблицы заполнены. Ждем flush первой без блокировки, иначе flush не сможет ее заменить
+            try {
+                if (!writeStall.awaitFlush(flushesCount, deadline)) {
+                    throw new WriteStallTimeoutException("Can`t upsert now, try later");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Upsert interrupted", e);
+            }
+        }
+        writeStall.slowDown(memStorage.secondTableFill());
+    }
+
+    private boolean tryUpsert(BaseEntry<byte[]> entry, int entryBytes) {
+        if (memStorage.firstTableOnFlush().get()) {
+            return memStorage.upsertToSecondTable(entry, entryBytes);
         }
+        if (memStorage.firstTableBytes().addAndGet(entryBytes) < daoConfig.flushThresholdBytes()) {
+            memStorage.putFirstTable(entry);
+            return true;
+        }
+        if (memStorage.firstTableNotOnFlushAndSetTrue()) {
+            flushFirstMemTable();
+        }
+        return memStorage.upsertToSecondTable(entry, entryBytes);
     }
 
     @Override
@@ -140,13 +190,13 @@ public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
                 MappedByteBuffer mappedByteBuffer = mapFile(dataFilePath);
                 lock.writeLock().lock();
                 try {
-                    ThreadLocal<Integer> position = new ThreadLocal<>();
-                    position.set(0);
-                    filesMap.put(dataFilePath, new FileInfo(getFileNumber(dataFilePath), mappedByteBuffer, position));
+                    filesMap.put(dataFilePath, new FileInfo(getFileNumber(dataFilePath), mappedByteBuffer));
                     memStorage.clearFirstTable();
                 } finally {
                     lock.writeLock().unlock();
                 }
+                writeStall.onFlushed();
+                scheduleCompaction();
             } catch (IOException e) {
                 throw new RuntimeException("Flush first table failed", e);
             }
@@ -172,55 +222,74 @@ public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
     @Override
     public void compact() {
         checkNotClosed();
+        compactionExecutor.execute(() -> compactFiles(true));
+    }
+
+    /**
+     * Фоновая compaction после каждого flush: сливает группы файлов, пока CompactionPolicy их находит.
+     */
+    private void scheduleCompaction() {
+        try {
+            compactionExecutor.execute(() -> {
+                while (compactFiles(false)) {
+                    // Следующая группа
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // dao закрывается
+        }
+    }
+
+    // Сливаем группу соседних по номеру файлов (при полной compaction - все файлы) во временный файл,
+    // после переименовываем его в самый старый файл группы, остальные файлы группы удаляем от старых к новым.
+    // Состояние валидно в любой момент: более новые файлы группы перекрывают результат теми же данными,
+    // а удаленная entry пропадает из результата, только если в группе самый старый файл вообще,
+    // при этом все файлы группы со значениями для нее старше файла с удалением и удаляются раньше него.
+    // Файлы, записанные во время compaction, новее всей группы.
+    // Запись идет с ограничением скорости, чтобы не забирать весь диск у flush-а и чтений.
+    private boolean compactFiles(boolean all) {
+        List<Map.Entry<Path, FileInfo>> files;
         lock.readLock().lock();
         try {
-            if (filesMap.size() < 2) {
-                return;
-            }
+            files = List.copyOf(filesMap.entrySet());
         } finally {
             lock.readLock().unlock();
         }
-        // Comact-им только файлы существующие на момент вызова компакта.
-        // Начинаем писать compact во временный файл,
-        // после переименовываем его в обычный самый приоритетный файл
-        // Состояние валидно - остальные файлы не тронуты, временный не учитывается при чтении/записи
-        // Начинаем удалять старые файлы: все кроме только что созданного. После переименовываем compact-файл в первый
-        // При ошибке выше чтение будет из корректного compact-файла,
-        // который останется самым приоритетным файлом существующие на момент вызова компакта
-        // Независимо от успеха/ошибок в действиях выше, файлы записанные после compact-a будут приоритетнее
-        compactionExecutor.execute(() -> {
+        List<Map.Entry<Path, FileInfo>> compactionFiles = all ? files : CompactionPolicy.pickFiles(files);
+        if (compactionFiles.size() < 2) {
+            return false;
+        }
+        boolean includingOldest = compactionFiles.get(0) == files.get(0);
+        Path targetPath = compactionFiles.get(0).getKey();
+        MappedByteBuffer targetMappedByteBuffer;
+        try {
             Path tempCompactionFilePath = generateTempPath(COMPACTION_FILE_NAME);
-            Path lastFilePath = generateNextFilePath();
-            MappedByteBuffer lastFileInputStream;
-            List<Map.Entry<Path, FileInfo>> compactionFileInfosMapEntries;
-            try {
-                MergeIterator allEntriesIterator = new MergeIterator(this, null, null, false);
-                compactionFileInfosMapEntries = allEntriesIterator.getFileInfos(); // copy of filesMap in iterator
-                DaoUtils.writeToFile(tempCompactionFilePath, allEntriesIterator);
-                Files.move(tempCompactionFilePath, lastFilePath);
-                lastFileInputStream = mapFile(lastFilePath);
-            } catch (IOException e) {
-                throw new RuntimeException("Writing to temp file failed", e);
-            }
-            lock.writeLock().lock();
-            try {
-                ThreadLocal<Integer> position = new ThreadLocal<>();
-                position.set(0);
-                filesMap.put(lastFilePath, new FileInfo(getFileNumber(lastFilePath), lastFileInputStream, position));
-                for (Map.Entry<Path, FileInfo> filesMapEntry : compactionFileInfosMapEntries) {
-                    filesMap.remove(filesMapEntry.getKey());
-                    unmap(filesMapEntry.getValue().mappedByteBuffer);
-                    Files.delete(filesMapEntry.getKey());
-                }
-            } catch (IOException e) {
-                throw new RuntimeException("Deleting old files failed", e);
-            } finally {
-                lock.writeLock().unlock();
+            DaoUtils.writeToFile(tempCompactionFilePath, new MergeIterator(compactionFiles, !includingOldest),
+                    new IoRateLimiter(COMPACTION_BYTES_PER_SECOND));
+            Files.move(tempCompactionFilePath, targetPath,
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            targetMappedByteBuffer = mapFile(targetPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Writing to temp file failed", e);
+        }
+        lock.writeLock().lock();
+        try {
+            // Старые отображения не освобождаем явно: ими еще могут пользоваться итераторы и get,
+            // их освободит GC, когда на буферы не останется ссылок
+            filesMap.put(targetPath, new FileInfo(getFileNumber(targetPath), targetMappedByteBuffer));
+            for (Map.Entry<Path, FileInfo> filesMapEntry : compactionFiles.subList(1, compactionFiles.size())) {
+                filesMap.remove(filesMapEntry.getKey());
+                Files.delete(filesMapEntry.getKey());
             }
-        });
+        } catch (IOException e) {
+            throw new RuntimeException("Deleting old files failed", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return true;
     }
 
-    public Iterator<BaseEntry<String>> inMemoryDataIterator(String from, String to) {
+    public Iterator<BaseEntry<byte[]>> inMemoryDataIterator(byte[] from, byte[] to) {
         lock.readLock().lock();
         try {
             return memStorage.iterator(from, to);
@@ -229,12 +298,14 @@ public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
         }
     }
 
-    private Iterator<BaseEntry<String>> firstTableIterator() {
-        lock.readLock().lock();
+    // Блокировка на запись: писатели, успевшие увидеть первую таблицу не на flush-е, пишут в нее под блокировкой
+    // на чтение, и их записи должны попасть в файл, иначе они пропадут при замене таблицы
+    private Iterator<BaseEntry<byte[]>> firstTableIterator() {
+        lock.writeLock().lock();
         try {
             return memStorage.firstTableIterator(null, null);
         } finally {
-            lock.readLock().unlock();
+            lock.writeLock().unlock();
         }
     }
 
@@ -250,6 +321,10 @@ public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
         return daoConfig;
     }
 
+    public WriteStall getWriteStall() {
+        return writeStall;
+    }
+
     public Map<Path, FileInfo> getFileInfosMap() {
         lock.readLock().lock();
         try {
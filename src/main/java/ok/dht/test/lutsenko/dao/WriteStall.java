@@ -0,0 +1,104 @@
+package ok.dht.test.lutsenko.dao;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Притормаживает запись, пока первая таблица сбрасывается на диск, а вторая заполняется.
+ * Чем ближе вторая таблица к лимиту, тем дольше пауза у каждого писателя (до MAX_SLOWDOWN_NANOS).
+ * Если места не осталось, писатель ждет окончания flush-а, но не дольше MAX_STALL_NANOS.
+ * Все время ожидания суммируется в метрику, она выводится в статусе сервера (см. appendTo).
+ */
+public class WriteStall {
+
+    public static final double SLOWDOWN_FILL = 0.75;
+    public static final long MAX_SLOWDOWN_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+    public static final long MAX_STALL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private final AtomicLong stallNanos = new AtomicLong();
+    private final AtomicLong stallsCount = new AtomicLong();
+    private final AtomicLong timeoutsCount = new AtomicLong();
+    private volatile long flushesCount;
+
+    /**
+     * Номер последнего завершенного flush-а, берется до попытки записи.
+     */
+    public long flushesCount() {
+        return flushesCount;
+    }
+
+    public void onFlushed() {
+        lock.lock();
+        try {
+            flushesCount++;
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * fill - доля заполнения второй таблицы, пока первая на flush-е.
+     */
+    public void slowDown(double fill) {
+        if (fill < SLOWDOWN_FILL) {
+            return;
+        }
+        long delay = (long) (MAX_SLOWDOWN_NANOS * Math.min(1, (fill - SLOWDOWN_FILL) / (1 - SLOWDOWN_FILL)));
+        long start = System.nanoTime();
+        LockSupport.parkNanos(delay);
+        record(System.nanoTime() - start);
+    }
+
+    /**
+     * Ждет flush, завершившийся после seenFlushesCount, до deadlineNanos.
+     * Возвращает false, если время вышло.
+     */
+    public boolean awaitFlush(long seenFlushesCount, long deadlineNanos) throws InterruptedException {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            long nanos = deadlineNanos - start;
+            while (flushesCount == seenFlushesCount) {
+                if (nanos <= 0) {
+                    timeoutsCount.incrementAndGet();
+                    return false;
+                }
+                nanos = flushed.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+            record(System.nanoTime() - start);
+        }
+    }
+
+    public long stallNanos() {
+        return stallNanos.get();
+    }
+
+    public long stallsCount() {
+        return stallsCount.get();
+    }
+
+    public long timeoutsCount() {
+        return timeoutsCount.get();
+    }
+
+    public void appendTo(StringBuilder sb) {
+        sb.append("write_stall_ms ").append(TimeUnit.NANOSECONDS.toMillis(stallNanos())).append('\n');
+        sb.append("write_stalls ").append(stallsCount()).append('\n');
+        sb.append("write_stall_timeouts ").append(timeoutsCount()).append('\n');
+    }
+
+    private void record(long nanos) {
+        stallNanos.addAndGet(nanos);
+        stallsCount.incrementAndGet();
+    }
+}
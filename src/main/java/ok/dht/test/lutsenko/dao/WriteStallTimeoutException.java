@@ -0,0 +1,11 @@
+package ok.dht.test.lutsenko.dao;
+
+/**
+ * Запись не дождалась места в памяти за WriteStall.MAX_STALL_NANOS: flush не успевает, стоит повторить позже.
+ */
+public class WriteStallTimeoutException extends RuntimeException {
+
+    public WriteStallTimeoutException(String message) {
+        super(message);
+    }
+}
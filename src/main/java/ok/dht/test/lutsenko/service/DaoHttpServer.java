@@ -1,6 +1,8 @@
 package ok.dht.test.lutsenko.service;
 
 import ok.dht.test.lutsenko.dao.PersistenceRangeDao;
+import ok.dht.test.lutsenko.dao.WriteStall;
+import ok.dht.test.lutsenko.dao.WriteStallTimeoutException;
 import ok.dht.test.lutsenko.dao.common.BaseEntry;
 import ok.dht.test.lutsenko.dao.common.DaoConfig;
 import one.nio.http.HttpServer;
@@ -10,12 +12,13 @@ import one.nio.http.Request;
 import one.nio.http.Response;
 import one.nio.net.Session;
 import one.nio.server.SelectorThread;
+import one.nio.util.Utf8;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Base64;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public class DaoHttpServer extends HttpServer {
@@ -31,12 +34,27 @@ public class DaoHttpServer extends HttpServer {
     @Override
     public void handleRequest(Request request, HttpSession session) throws IOException {
         String path = request.getPath();
+        if ("/v0/status".equals(path)) {
+            session.sendResponse(statusResponse());
+            return;
+        }
         if (!"/v0/entity".equals(path)) {
             session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
         }
         requestExecutor.execute(new SessionRunnable(session,
                 () -> {
-                    Response response = proceed(request);
+                    Response response;
+                    try {
+                        response = proceed(request);
+                    } catch (WriteStallTimeoutException e) {
+                        WriteStall writeStall = dao.getWriteStall();
+                        LOG.warn("Write stalled too long, total stall {} ms in {} stalls",
+                                TimeUnit.NANOSECONDS.toMillis(writeStall.stallNanos()), writeStall.stallsCount());
+                        response = new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY);
+                    } catch (Exception e) {
+                        LOG.error("Failed to proceed request", e);
+                        response = new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+                    }
                     ServiceUtils.sendResponse(session, response);
                 }
         ));
@@ -49,6 +67,9 @@ public class DaoHttpServer extends HttpServer {
         } catch (TimeoutException e) {
             LOG.warn("Request executor await termination too long");
         }
+        WriteStall writeStall = dao.getWriteStall();
+        LOG.info("Writes stalled {} ms in {} stalls",
+                TimeUnit.NANOSECONDS.toMillis(writeStall.stallNanos()), writeStall.stallsCount());
         for (SelectorThread thread : selectors) {
             for (Session session : thread.selector) {
                 session.close();
@@ -61,6 +82,14 @@ public class DaoHttpServer extends HttpServer {
         return dao;
     }
 
+    private Response statusResponse() {
+        StringBuilder sb = new StringBuilder();
+        dao.getWriteStall().appendTo(sb);
+        Response response = new Response(Response.OK, Utf8.toBytes(sb.toString()));
+        response.addHeader("Content-Type: text/plain");
+        return response;
+    }
+
     private Response proceed(Request request) {
         String id = request.getParameter("id=");
         if (id == null || id.isBlank()) {
@@ -68,18 +97,18 @@ public class DaoHttpServer extends HttpServer {
         }
         switch (request.getMethod()) {
             case Request.METHOD_GET -> {
-                BaseEntry<String> entry = dao.get(id);
+                BaseEntry<byte[]> entry = dao.get(Utf8.toBytes(id));
                 if (entry == null) {
                     return new Response(Response.NOT_FOUND, Response.EMPTY);
                 }
-                return new Response(Response.OK, Base64.getDecoder().decode(entry.value()));
+                return new Response(Response.OK, entry.value());
             }
             case Request.METHOD_PUT -> {
-                dao.upsert(new BaseEntry<>(id, Base64.getEncoder().encodeToString(request.getBody())));
+                dao.upsert(new BaseEntry<>(Utf8.toBytes(id), request.getBody()));
                 return new Response(Response.CREATED, Response.EMPTY);
             }
             case Request.METHOD_DELETE -> {
-                dao.upsert(new BaseEntry<>(id, null));
+                dao.upsert(new BaseEntry<>(Utf8.toBytes(id), null));
                 return new Response(Response.ACCEPTED, Response.EMPTY);
             }
             default -> {
@@ -0,0 +1,42 @@
+package ok.dht.test.pashchenko;
+
+import one.nio.http.Response;
+
+/**
+ * Shared pre-serialized response without body.
+ * {@link MyHttpSession} writes the prepared bytes instead of building headers for every request.
+ */
+final class EmptyResponse extends Response {
+    static final EmptyResponse CREATED = new EmptyResponse(Response.CREATED);
+    static final EmptyResponse ACCEPTED = new EmptyResponse(Response.ACCEPTED);
+    static final EmptyResponse BAD_REQUEST = new EmptyResponse(Response.BAD_REQUEST);
+    static final EmptyResponse NOT_FOUND = new EmptyResponse(Response.NOT_FOUND);
+    static final EmptyResponse METHOD_NOT_ALLOWED = new EmptyResponse(Response.METHOD_NOT_ALLOWED);
+    static final EmptyResponse INTERNAL_ERROR = new EmptyResponse(Response.INTERNAL_ERROR);
+    static final EmptyResponse SERVICE_UNAVAILABLE = new EmptyResponse(Response.SERVICE_UNAVAILABLE);
+
+    private final byte[] keepAliveBytes;
+    private final byte[] closeBytes;
+
+    private EmptyResponse(String resultCode) {
+        super(resultCode, Response.EMPTY);
+        this.keepAliveBytes = serialize(resultCode, "Connection: Keep-Alive");
+        this.closeBytes = serialize(resultCode, "Connection: close");
+    }
+
+    private static byte[] serialize(String resultCode, String connectionHeader) {
+        Response response = new Response(resultCode, Response.EMPTY);
+        response.addHeader(connectionHeader);
+        return response.toBytes(true);
+    }
+
+    // instances are shared, so the connection header is chosen on write instead
+    @Override
+    public void addHeader(String header) {
+        // nothing to do
+    }
+
+    byte[] serialized(boolean keepAlive) {
+        return keepAlive ? keepAliveBytes : closeBytes;
+    }
+}
@@ -0,0 +1,125 @@
+package ok.dht.test.pashchenko;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Per-thread buffer for the {@code id} request parameter.
+ * The id is decoded from the request URI straight into UTF-8 bytes,
+ * so neither a decoded String nor its byte copy is allocated per request.
+ */
+final class KeyBuffer {
+    private static final String ID_PARAM = "id=";
+    private static final int INITIAL_CAPACITY = 128;
+    private static final ThreadLocal<KeyBuffer> BUFFERS = ThreadLocal.withInitial(KeyBuffer::new);
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private MemorySegment segment = MemorySegment.ofArray(bytes);
+    // Segments can't be resized, so views of the buffer are cached by length: ids are mostly of a few lengths
+    private MemorySegment[] views = new MemorySegment[INITIAL_CAPACITY + 1];
+    private int length;
+
+    private KeyBuffer() {
+    }
+
+    static KeyBuffer current() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * Decodes the {@code id} parameter of the uri into this buffer.
+     *
+     * @return false if the parameter is absent or empty
+     */
+    boolean parseId(String uri) {
+        length = 0;
+        int paramStart = uri.indexOf('?') + 1;
+        if (paramStart == 0) {
+            return false;
+        }
+        while (!uri.startsWith(ID_PARAM, paramStart)) {
+            paramStart = uri.indexOf('&', paramStart) + 1;
+            if (paramStart == 0) {
+                return false;
+            }
+        }
+        decode(uri, paramStart + ID_PARAM.length());
+        return length > 0;
+    }
+
+    private void decode(String uri, int from) {
+        for (int i = from; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c == '&') {
+                return;
+            }
+            if (c == '%' && i + 2 < uri.length()) {
+                int hi = Character.digit(uri.charAt(i + 1), 16);
+                int lo = Character.digit(uri.charAt(i + 2), 16);
+                if (hi >= 0 && lo >= 0) {
+                    append((hi << 4) | lo);
+                    i += 2;
+                    continue;
+                }
+            }
+            if (c == '+') {
+                append(' ');
+            } else if (c < 0x80) {
+                append(c);
+            } else if (c < 0x800) {
+                append(0xc0 | (c >>> 6));
+                append(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < uri.length()) {
+                int codePoint = Character.toCodePoint(c, uri.charAt(++i));
+                append(0xf0 | (codePoint >>> 18));
+                append(0x80 | ((codePoint >>> 12) & 0x3f));
+                append(0x80 | ((codePoint >>> 6) & 0x3f));
+                append(0x80 | (codePoint & 0x3f));
+            } else {
+                append(0xe0 | (c >>> 12));
+                append(0x80 | ((c >>> 6) & 0x3f));
+                append(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void append(int b) {
+        if (length == bytes.length) {
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            segment = MemorySegment.ofArray(bytes);
+            views = new MemorySegment[bytes.length + 1];
+        }
+        bytes[length++] = (byte) b;
+    }
+
+    /**
+     * Same as {@code hashCode} of the decoded id string, so keys are routed to the same nodes as before.
+     * Ascii ids are hashed in place, others are decoded to UTF-16 chars first.
+     */
+    int keyHash() {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] < 0) {
+                return new String(bytes, 0, length, StandardCharsets.UTF_8).hashCode();
+            }
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
+    // valid until the next parseId on this thread
+    MemorySegment segment() {
+        MemorySegment view = views[length];
+        if (view == null) {
+            view = segment.asSlice(0, length);
+            views[length] = view;
+        }
+        return view;
+    }
+
+    MemorySegment copy() {
+        return MemorySegment.ofArray(Arrays.copyOf(bytes, length));
+    }
+}
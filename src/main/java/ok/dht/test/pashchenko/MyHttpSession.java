@@ -0,0 +1,286 @@
+package ok.dht.test.pashchenko;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import one.nio.http.HttpServer;
+import one.nio.http.HttpSession;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.Socket;
+
+/**
+ * Session that hands pipelined requests to the server without waiting for previous responses
+ * as long as their effects can't depend on the order (RFC 7230, 6.3.2): runs of GET and HEAD requests
+ * are handled concurrently, any other request is handled alone, after all previous ones have completed.
+ * Responses may complete in any order: they are written in request order,
+ * and all responses that are ready at once go to the socket as one queue item.
+ * Requests waiting for their turn are kept in {@code pipeline}, and {@code handling} is the oldest request
+ * without a written response, so one-nio closes a half-closed or idle session only when all responses are sent.
+ */
+class MyHttpSession extends HttpSession {
+    private static final int MAX_PIPELINE_LENGTH = 256;
+
+    // dispatched requests in arrival order, the completed prefix is written out
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    // dispatched requests without a response yet
+    private int inFlight;
+    private boolean unsafeInFlight;
+
+    MyHttpSession(Socket socket, HttpServer server) {
+        super(socket, server);
+    }
+
+    @Override
+    protected void handleParsedRequest() throws IOException {
+        Request request = parsing;
+        parsing = null;
+        synchronized (this) {
+            if (pending.size() + pipeline.size() >= MAX_PIPELINE_LENGTH) {
+                throw new IOException("Pipeline length exceeded");
+            }
+            if (!pipeline.isEmpty() || !canDispatch(request)) {
+                pipeline.addLast(request);
+                return;
+            }
+            dispatched(request);
+        }
+        server.handleRequest(request, this);
+    }
+
+    void sendResponse(Request request, Response response) throws IOException {
+        boolean keepAlive = isKeepAlive(request);
+        Part part = serialize(response, keepAlive, request.getMethod() != Request.METHOD_HEAD);
+
+        List<Request> next;
+        synchronized (this) {
+            Pending target = find(request);
+            if (target == null) {
+                // the session was closed while the request was handled
+                part.release();
+                return;
+            }
+            target.part = part;
+            inFlight--;
+            if (inFlight == 0) {
+                unsafeInFlight = false;
+            }
+
+            List<Part> ready = pollReady();
+            if (!ready.isEmpty()) {
+                write(new ResponseBatch(ready));
+                if (!ready.get(ready.size() - 1).keepAlive) {
+                    releasePending();
+                    scheduleClose();
+                    return;
+                }
+            }
+            next = pollDispatchable();
+        }
+        for (Request nextRequest : next) {
+            server.handleRequest(nextRequest, this);
+        }
+    }
+
+    private boolean canDispatch(Request request) {
+        return inFlight == 0 || isSafe(request) && !unsafeInFlight;
+    }
+
+    private void dispatched(Request request) {
+        pending.addLast(new Pending(request));
+        inFlight++;
+        unsafeInFlight |= !isSafe(request);
+        handling = pending.peekFirst().request;
+    }
+
+    private List<Request> pollDispatchable() {
+        List<Request> next = new ArrayList<>();
+        while (!pipeline.isEmpty() && pipeline.peekFirst() != FIN && canDispatch(pipeline.peekFirst())) {
+            Request request = pipeline.pollFirst();
+            dispatched(request);
+            next.add(request);
+        }
+        if (pending.isEmpty()) {
+            handling = null;
+            if (pipeline.peekFirst() == FIN) {
+                // the client has shut down its side and every response is written
+                pipeline.clear();
+                scheduleClose();
+            }
+        } else {
+            handling = pending.peekFirst().request;
+        }
+        return next;
+    }
+
+    private static boolean isSafe(Request request) {
+        return request.getMethod() == Request.METHOD_GET || request.getMethod() == Request.METHOD_HEAD;
+    }
+
+    private Pending find(Request request) {
+        for (Pending p : pending) {
+            if (p.request == request) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    private List<Part> pollReady() {
+        List<Part> ready = new ArrayList<>();
+        while (!pending.isEmpty() && pending.peekFirst().part != null) {
+            Part part = pending.pollFirst().part;
+            ready.add(part);
+            if (!part.keepAlive) {
+                break;
+            }
+        }
+        return ready;
+    }
+
+    private void releasePending() {
+        for (Pending p : pending) {
+            if (p.part != null) {
+                p.part.release();
+            }
+        }
+        pending.clear();
+    }
+
+    @Override
+    public synchronized void close() {
+        releasePending();
+        pipeline.clear();
+        handling = null;
+        super.close();
+    }
+
+    private static Part serialize(Response response, boolean keepAlive, boolean includeBody) throws IOException {
+        if (response instanceof EmptyResponse emptyResponse) {
+            return new Part(emptyResponse.serialized(keepAlive), null, keepAlive);
+        }
+        response.addHeader(keepAlive ? "Connection: Keep-Alive" : "Connection: close");
+        if (response instanceof SegmentResponse segmentResponse) {
+            MemorySegment body = includeBody ? segmentResponse.segment() : null;
+            return new Part(response.toBytes(false), body, keepAlive);
+        }
+        return new Part(response.toBytes(includeBody), null, keepAlive);
+    }
+
+    // the same rule HttpSession.sendResponse uses to pick the connection header
+    private static boolean isKeepAlive(Request request) {
+        String connection = request.getHeader("Connection:");
+        return request.isHttp11()
+                ? !"close".equalsIgnoreCase(connection)
+                : "Keep-Alive".equalsIgnoreCase(connection);
+    }
+
+    private static class Pending {
+        final Request request;
+        Part part;
+
+        Pending(Request request) {
+            this.request = request;
+        }
+    }
+
+    // serialized response, keeps the scope of the mapped sstable acquired until the body is sent
+    private static class Part {
+        final byte[] head;
+        final MemorySegment body;
+        final boolean keepAlive;
+        private ResourceScope.Handle handle;
+
+        Part(byte[] head, MemorySegment body, boolean keepAlive) throws IOException {
+            this.head = head;
+            this.body = body;
+            this.keepAlive = keepAlive;
+            if (body != null) {
+                try {
+                    this.handle = body.scope().acquire();
+                } catch (IllegalStateException e) {
+                    throw new IOException("Storage is already closed", e);
+                }
+            }
+        }
+
+        void release() {
+            if (handle != null) {
+                body.scope().release(handle);
+                handle = null;
+            }
+        }
+    }
+
+    // consecutive heads and heap bodies are merged into one buffer, mapped bodies are written in place
+    private static class ResponseBatch extends QueueItem {
+        private final List<Part> parts;
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private int current;
+
+        ResponseBatch(List<Part> parts) {
+            this.parts = parts;
+            int from = 0;
+            for (int i = 0; i < parts.size(); i++) {
+                Part part = parts.get(i);
+                if (part.body != null || i == parts.size() - 1) {
+                    buffers.add(mergeHeads(parts, from, i + 1));
+                    if (part.body != null) {
+                        buffers.add(part.body.asByteBuffer());
+                    }
+                    from = i + 1;
+                }
+            }
+        }
+
+        private static ByteBuffer mergeHeads(List<Part> parts, int from, int to) {
+            if (to - from == 1) {
+                return ByteBuffer.wrap(parts.get(from).head);
+            }
+            int size = 0;
+            for (int i = from; i < to; i++) {
+                size += parts.get(i).head.length;
+            }
+            ByteBuffer merged = ByteBuffer.allocate(size);
+            for (int i = from; i < to; i++) {
+                merged.put(parts.get(i).head);
+            }
+            return merged.flip();
+        }
+
+        @Override
+        public int remaining() {
+            int remaining = 0;
+            for (int i = current; i < buffers.size(); i++) {
+                remaining += buffers.get(i).remaining();
+            }
+            return remaining;
+        }
+
+        @Override
+        public int write(Socket socket) throws IOException {
+            int written = 0;
+            while (current < buffers.size()) {
+                ByteBuffer buffer = buffers.get(current);
+                written += socket.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return written;
+                }
+                current++;
+            }
+            return written;
+        }
+
+        @Override
+        public void release() {
+            for (Part part : parts) {
+                part.release();
+            }
+        }
+    }
+}
@@ -27,7 +27,9 @@ import one.nio.http.HttpSession;
 import one.nio.http.Request;
 import one.nio.http.Response;
 import one.nio.net.Session;
+import one.nio.net.Socket;
 import one.nio.server.AcceptorConfig;
+import one.nio.server.RejectedSessionException;
 import one.nio.server.SelectorThread;
 import one.nio.util.Utf8;
 
@@ -39,6 +41,7 @@ public class MyServer extends HttpServer {
     private final HttpClient client;
     private final ServiceConfig config;
     private final List<Node> nodes;
+    private final RequestStats stats = new RequestStats();
 
     public MyServer(ServiceConfig config) throws IOException {
         super(createConfigFromPort(config.selfPort()));
@@ -63,35 +66,54 @@ public class MyServer extends HttpServer {
     }
 
     @Override
-    public void handleRequest(Request request, HttpSession session) throws IOException {
+    public HttpSession createSession(Socket socket) throws RejectedSessionException {
+        return new MyHttpSession(socket, this);
+    }
+
+    @Override
+    public void handleRequest(Request request, HttpSession httpSession) throws IOException {
+        long start = System.nanoTime();
+        MyHttpSession session = (MyHttpSession) httpSession;
+        if ("/v0/status".equals(request.getPath())) {
+            session.sendResponse(request, statusResponse());
+            return;
+        }
+
         if (!"/v0/entity".equals(request.getPath())) {
-            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            sendLocal(session, request, EmptyResponse.BAD_REQUEST, start);
             return;
         }
 
-        String id = request.getParameter("id=");
-        if (id == null || id.isEmpty()) {
-            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+        KeyBuffer key = KeyBuffer.current();
+        if (!key.parseId(request.getURI())) {
+            sendLocal(session, request, EmptyResponse.BAD_REQUEST, start);
             return;
         }
 
-        Node node = getNodeForKey(id);
+        Node node = getNodeForKey(key.keyHash());
 
         int tasks = node.tasksCount.incrementAndGet();
         if (tasks > Node.MAX_TASKS_ALLOWED) {
             node.tasksCount.decrementAndGet();
-            session.sendResponse(new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+            sendLocal(session, request, EmptyResponse.SERVICE_UNAVAILABLE, start);
             return;
         }
 
         node.tasks.add(() -> {
+            stats.recordQueueWait(start);
+            String url = node.url;
+            boolean proxied = !url.equals(config.selfUrl());
             try {
-                String url = node.url;
-                LOG.debug("Url {} for id {} (my port is {})", url, id, config.selfPort());
-                session.sendResponse(url.equals(config.selfUrl()) ? handleRequest(request, id) : proxyRequest(request, url));
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Url {} for uri {} (my port is {})", url, request.getURI(), config.selfPort());
+                }
+                Response response = proxied ? proxyRequest(request, url) : handleRequest(request);
+                stats.recordRequest(request.getMethod(), proxied, response.getStatus(), start);
+                session.sendResponse(request, response);
             } catch (Exception e) {
                 LOG.error("error handle request", e);
-                sendError(session);
+                stats.recordRequest(request.getMethod(), proxied, 500, start);
+                sendError(session, request);
             }
         });
 
@@ -116,10 +138,25 @@ public class MyServer extends HttpServer {
 
     }
 
-    private Node getNodeForKey(String id) {
+    private void sendLocal(MyHttpSession session, Request request, Response response, long start)
+            throws IOException {
+        stats.recordRequest(request.getMethod(), false, response.getStatus(), start);
+        session.sendResponse(request, response);
+    }
+
+    private Response statusResponse() {
+        StringBuilder sb = new StringBuilder();
+        stats.appendTo(sb);
+        dao.appendStats(sb);
+        Response response = new Response(Response.OK, Utf8.toBytes(sb.toString()));
+        response.addHeader("Content-Type: text/plain");
+        return response;
+    }
+
+    private Node getNodeForKey(int keyHash) {
         int hash = Integer.MAX_VALUE;
         Node result = null;
-        int idHash = id.hashCode() * 17;
+        int idHash = keyHash * 17;
         for (Node node : nodes) {
             int newHash = idHash + node.url.hashCode();
             if (newHash < hash) {
@@ -130,9 +167,9 @@ public class MyServer extends HttpServer {
         return result == null ? nodes.get(0) : result;
     }
 
-    private static void sendError(HttpSession session) {
+    private static void sendError(MyHttpSession session, Request request) {
         try {
-            session.sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+            session.sendResponse(request, EmptyResponse.INTERNAL_ERROR);
         } catch (Exception ex) {
             LOG.error("error send response", ex);
             sessionClose(session);
@@ -156,7 +193,19 @@ public class MyServer extends HttpServer {
                                 : HttpRequest.BodyPublishers.ofByteArray(request.getBody())
                 ).build();
 
-        HttpResponse<byte[]> response = client.send(proxyRequest, HttpResponse.BodyHandlers.ofByteArray());
+        ProxyEvent event = new ProxyEvent();
+        event.begin();
+        HttpResponse<byte[]> response;
+        try {
+            response = client.send(proxyRequest, HttpResponse.BodyHandlers.ofByteArray());
+            event.status = response.statusCode();
+        } finally {
+            if (event.shouldCommit()) {
+                event.targetNode = url;
+                event.method = request.getMethodName();
+                event.commit();
+            }
+        }
         String status = switch (response.statusCode()) {
             case HttpURLConnection.HTTP_OK -> Response.OK;
             case HttpURLConnection.HTTP_CREATED -> Response.CREATED;
@@ -183,25 +232,27 @@ public class MyServer extends HttpServer {
         return new Response(status, response.body());
     }
 
-    private Response handleRequest(Request request, String id) {
+    private Response handleRequest(Request request) {
+        KeyBuffer key = KeyBuffer.current();
+        key.parseId(request.getURI());
         switch (request.getMethod()) {
             case Request.METHOD_GET -> {
-                Entry entry = dao.get(MemorySegment.ofArray(Utf8.toBytes(id)));
+                Entry entry = dao.get(key.segment());
                 if (entry == null) {
-                    return new Response(Response.NOT_FOUND, Response.EMPTY);
+                    return EmptyResponse.NOT_FOUND;
                 }
-                return new Response(Response.OK, entry.value().toByteArray());
+                return new SegmentResponse(Response.OK, entry.value());
             }
             case Request.METHOD_PUT -> {
-                dao.upsert(new Entry(MemorySegment.ofArray(Utf8.toBytes(id)), MemorySegment.ofArray(request.getBody())));
-                return new Response(Response.CREATED, Response.EMPTY);
+                dao.upsert(new Entry(key.copy(), MemorySegment.ofArray(request.getBody())));
+                return EmptyResponse.CREATED;
             }
             case Request.METHOD_DELETE -> {
-                dao.upsert(new Entry(MemorySegment.ofArray(Utf8.toBytes(id)), null));
-                return new Response(Response.ACCEPTED, Response.EMPTY);
+                dao.upsert(new Entry(key.copy(), null));
+                return EmptyResponse.ACCEPTED;
             }
             default -> {
-                return new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
+                return EmptyResponse.METHOD_NOT_ALLOWED;
             }
         }
     }
@@ -0,0 +1,22 @@
+package ok.dht.test.pashchenko;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("ok.dht.pashchenko.Proxy")
+@Label("Proxy Request")
+@Description("Round-trip of a request forwarded to the node owning the key")
+@Category({"DHT", "Server"})
+class ProxyEvent extends Event {
+    @Label("Target Node")
+    String targetNode;
+
+    @Label("Method")
+    String method;
+
+    @Label("Status")
+    int status;
+}
@@ -0,0 +1,59 @@
+package ok.dht.test.pashchenko;
+
+import ok.dht.test.pashchenko.metrics.LatencyHistogram;
+import one.nio.http.Request;
+
+/**
+ * Request latency histograms split by method, local/proxied handling and status class,
+ * all created upfront so that recording does not allocate.
+ */
+class RequestStats {
+    private static final String[] METHODS = {"get", "put", "delete", "other"};
+    private static final String[] ROUTES = {"local", "proxied"};
+    private static final String[] STATUSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[METHODS.length * ROUTES.length * STATUSES.length];
+    private final LatencyHistogram queueWait = new LatencyHistogram("queue_wait");
+
+    RequestStats() {
+        for (int method = 0; method < METHODS.length; method++) {
+            for (int route = 0; route < ROUTES.length; route++) {
+                for (int status = 0; status < STATUSES.length; status++) {
+                    String name = "request_" + METHODS[method] + '_' + ROUTES[route] + '_' + STATUSES[status];
+                    latencies[index(method, route, status)] = new LatencyHistogram(name);
+                }
+            }
+        }
+    }
+
+    void recordQueueWait(long enqueuedNanos) {
+        queueWait.recordSince(enqueuedNanos);
+    }
+
+    void recordRequest(int method, boolean proxied, int status, long startNanos) {
+        int statusClass = Math.min(Math.max(status / 100 - 1, 0), STATUSES.length - 1);
+        latencies[index(methodIndex(method), proxied ? 1 : 0, statusClass)].recordSince(startNanos);
+    }
+
+    void appendTo(StringBuilder sb) {
+        for (LatencyHistogram latency : latencies) {
+            if (latency.count() > 0) {
+                latency.appendTo(sb);
+            }
+        }
+        queueWait.appendTo(sb);
+    }
+
+    private static int methodIndex(int method) {
+        return switch (method) {
+            case Request.METHOD_GET -> 0;
+            case Request.METHOD_PUT -> 1;
+            case Request.METHOD_DELETE -> 2;
+            default -> 3;
+        };
+    }
+
+    private static int index(int method, int route, int status) {
+        return (method * ROUTES.length + route) * STATUSES.length + status;
+    }
+}
@@ -0,0 +1,22 @@
+package ok.dht.test.pashchenko;
+
+import jdk.incubator.foreign.MemorySegment;
+import one.nio.http.Response;
+
+/**
+ * Response whose body is a slice of a DAO segment rather than a heap array.
+ * The body is written to the socket by {@link MyHttpSession} without copying.
+ */
+class SegmentResponse extends Response {
+    private final MemorySegment body;
+
+    SegmentResponse(String resultCode, MemorySegment body) {
+        super(resultCode);
+        this.body = body;
+        addHeader("Content-Length: " + body.byteSize());
+    }
+
+    MemorySegment segment() {
+        return body;
+    }
+}
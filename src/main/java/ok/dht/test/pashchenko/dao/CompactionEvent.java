@@ -0,0 +1,13 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("ok.dht.pashchenko.Compaction")
+@Label("Compaction")
+@Description("Merge of all sstables into a single compacted one")
+class CompactionEvent extends SSTableWriteEvent {
+    @Label("Files Merged")
+    int filesMerged;
+}
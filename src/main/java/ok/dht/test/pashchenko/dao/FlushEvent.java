@@ -0,0 +1,13 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("ok.dht.pashchenko.Flush")
+@Label("Memtable Flush")
+@Description("Background flush of a memtable into a new sstable")
+class FlushEvent extends SSTableWriteEvent {
+    @Label("SSTable Index")
+    int sstableIndex;
+}
@@ -1,6 +1,7 @@
 package ok.dht.test.pashchenko.dao;
 
 import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.pashchenko.metrics.LatencyHistogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +31,11 @@ public class MemorySegmentDao {
 
     private final Config config;
 
+    private final LatencyHistogram getLatency = new LatencyHistogram("dao_get");
+    private final LatencyHistogram upsertLatency = new LatencyHistogram("dao_upsert");
+    private final LatencyHistogram flushDuration = new LatencyHistogram("dao_flush");
+    private final LatencyHistogram compactionDuration = new LatencyHistogram("dao_compaction");
+
     public MemorySegmentDao(Config config) throws IOException {
         this.config = config;
         this.state = State.newState(config, Storage.load(config));
@@ -57,6 +63,7 @@ public class MemorySegmentDao {
     }
 
     public Entry get(MemorySegment key) {
+        long start = System.nanoTime();
         State state = accessState();
 
         Entry result = state.memory.get(key);
@@ -64,10 +71,12 @@ public class MemorySegmentDao {
             result = state.storage.get(key);
         }
 
+        getLatency.recordSince(start);
         return (result == null || result.isTombstone()) ? null : result;
     }
 
     public void upsert(Entry entry) {
+        long start = System.nanoTime();
         State state = accessState();
 
         boolean runFlush;
@@ -79,6 +88,7 @@ public class MemorySegmentDao {
             upsertLock.readLock().unlock();
         }
 
+        upsertLatency.recordSince(start);
         if (runFlush) {
             flushInBg(false);
         }
@@ -104,11 +114,15 @@ public class MemorySegmentDao {
 
         return executor.submit(() -> {
             try {
+                long start = System.nanoTime();
                 State state = accessState();
 
                 Storage storage = state.storage;
-                Storage.save(config, storage, state.flushing.values());
+                FlushEvent event = new FlushEvent();
+                event.begin();
+                Storage.save(config, storage, state.flushing.values(), event);
                 Storage load = Storage.load(config);
+                event.commit();
 
                 upsertLock.writeLock().lock();
                 try {
@@ -117,6 +131,7 @@ public class MemorySegmentDao {
                     upsertLock.writeLock().unlock();
                 }
                 storage.maybeClose();
+                flushDuration.recordSince(start);
                 return null;
             } catch (Exception e) {
                 LOG.error("Can't flush", e);
@@ -156,12 +171,16 @@ public class MemorySegmentDao {
         }
 
         Future<Object> future = executor.submit(() -> {
+            long start = System.nanoTime();
             State state = accessState();
 
             if (state.memory.isEmpty() && state.storage.isCompacted()) {
                 return null;
             }
 
+            CompactionEvent event = new CompactionEvent();
+            event.begin();
+            event.filesMerged = state.storage.sstablesCount();
             Storage.compact(
                     config,
                     () -> MergeIterator.of(
@@ -169,10 +188,12 @@ public class MemorySegmentDao {
                                     null
                             ),
                             EntryKeyComparator.INSTANCE
-                    )
+                    ),
+                    event
             );
 
             Storage storage = Storage.load(config);
+            event.commit();
 
             upsertLock.writeLock().lock();
             try {
@@ -182,12 +203,24 @@ public class MemorySegmentDao {
             }
 
             state.storage.maybeClose();
+            compactionDuration.recordSince(start);
             return null;
         });
 
         awaitAndUnwrap(future);
     }
 
+    public void appendStats(StringBuilder sb) {
+        getLatency.appendTo(sb);
+        upsertLatency.appendTo(sb);
+        flushDuration.appendTo(sb);
+        compactionDuration.appendTo(sb);
+
+        State state = this.state;
+        sb.append("sstables ").append(state.storage.sstablesCount()).append('\n');
+        sb.append("memtable_bytes ").append(state.memory.byteSize() + state.flushing.byteSize()).append('\n');
+    }
+
     private void awaitAndUnwrap(Future<?> future) throws IOException {
         try {
             future.get();
@@ -230,7 +263,10 @@ public class MemorySegmentDao {
         if (state.memory.isEmpty()) {
             return;
         }
-        Storage.save(config, state.storage, state.memory.values());
+        FlushEvent event = new FlushEvent();
+        event.begin();
+        Storage.save(config, state.storage, state.memory.values(), event);
+        event.commit();
     }
 
     private static class TombstoneFilteringIterator implements Iterator<Entry> {
@@ -379,6 +415,10 @@ public class MemorySegmentDao {
             return delegate.isEmpty();
         }
 
+        public long byteSize() {
+            return size.get();
+        }
+
         public Collection<Entry> values() {
             return delegate.values();
         }
@@ -0,0 +1,21 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Registered;
+
+/**
+ * Common fields of JFR events for operations writing an sstable, filled in by {@link Storage}.
+ */
+@Registered(false)
+@Category({"DHT", "Storage"})
+abstract class SSTableWriteEvent extends Event {
+    @Label("Entries")
+    long entries;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+}
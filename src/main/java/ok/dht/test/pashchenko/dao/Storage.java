@@ -69,15 +69,18 @@ class Storage implements Closeable {
     static void save(
             Config config,
             Storage previousState,
-            Collection<Entry> entries) throws IOException {
+            Collection<Entry> entries,
+            FlushEvent event) throws IOException {
         int nextSSTableIndex = previousState.sstables.size();
         Path sstablePath = config.basePath().resolve(FILE_NAME + nextSSTableIndex + FILE_EXT);
-        save(entries::iterator, sstablePath);
+        event.sstableIndex = nextSSTableIndex;
+        save(entries::iterator, sstablePath, event);
     }
 
     private static void save(
             Data entries,
-            Path sstablePath
+            Path sstablePath,
+            SSTableWriteEvent event
     ) throws IOException {
 
         Path sstableTmpPath = sstablePath.resolveSibling(sstablePath.getFileName().toString() + FILE_EXT_TMP);
@@ -125,6 +128,9 @@ class Storage implements Closeable {
             MemoryAccess.setLongAtOffset(nextSSTable, 16, hasTombstone ? 1 : 0);
 
             nextSSTable.force();
+
+            event.entries = entriesCount;
+            event.bytesWritten = dataStart + size;
         }
 
         Files.move(sstableTmpPath, sstablePath, StandardCopyOption.ATOMIC_MOVE);
@@ -160,9 +166,9 @@ class Storage implements Closeable {
         return MemorySegment.mapFile(file, 0, size, FileChannel.MapMode.READ_ONLY, scope);
     }
 
-    public static void compact(Config config, Data data) throws IOException {
+    public static void compact(Config config, Data data, CompactionEvent event) throws IOException {
         Path compactedFile = config.basePath().resolve(COMPACTED_FILE);
-        save(data, compactedFile);
+        save(data, compactedFile, event);
         finishCompact(config, compactedFile);
     }
 
@@ -325,6 +331,10 @@ class Storage implements Closeable {
         return !scope.isAlive();
     }
 
+    public int sstablesCount() {
+        return sstables.size();
+    }
+
     public boolean isCompacted() {
         if (sstables.isEmpty()) {
             return true;
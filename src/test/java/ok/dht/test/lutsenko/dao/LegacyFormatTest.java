@@ -0,0 +1,110 @@
+package ok.dht.test.lutsenko.dao;
+
+import ok.dht.test.lutsenko.dao.common.BaseEntry;
+import ok.dht.test.lutsenko.dao.common.DaoConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Открытие папки, записанной исходной (текстовой) версией dao.
+ * Файлы в resources записаны ею: сначала flush k1, k2=old, k3, "line\nbreak", "back\\slash", "ключ",
+ * затем при закрытии k2=new, удаление k3, пустое значение k4. Значения сохранены в Base64, как это делал сервер.
+ */
+class LegacyFormatTest {
+
+    private static final String[] BASELINE_FILES = {"daoData0.txt", "daoData1.txt"};
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsBaselineDirectory() throws IOException {
+        copyBaselineFiles();
+        PersistenceRangeDao dao = new PersistenceRangeDao(new DaoConfig(dir, 1 << 20));
+        try {
+            assertBaselineData(dao);
+        } finally {
+            dao.close();
+        }
+    }
+
+    @Test
+    void migratesBaselineFilesOnce() throws IOException {
+        copyBaselineFiles();
+        new PersistenceRangeDao(new DaoConfig(dir, 1 << 20)).close();
+        for (String file : BASELINE_FILES) {
+            assertTrue(DaoUtils.hasFooter(DaoUtils.mapFile(dir.resolve(file))), file);
+        }
+        PersistenceRangeDao dao = new PersistenceRangeDao(new DaoConfig(dir, 1 << 20));
+        try {
+            assertBaselineData(dao);
+        } finally {
+            dao.close();
+        }
+    }
+
+    @Test
+    void failsOnTruncatedBaselineFile() throws IOException {
+        copyBaselineFiles();
+        Path file = dir.resolve(BASELINE_FILES[0]);
+        byte[] content = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(content, content.length - 7));
+        assertThrows(IllegalStateException.class, () -> new PersistenceRangeDao(new DaoConfig(dir, 1 << 20)));
+    }
+
+    @Test
+    void failsOnUnknownFormat() throws IOException {
+        Files.write(dir.resolve(BASELINE_FILES[0]), new byte[]{0, 0, 0, 2, 'k', '1', 0, 0, 0, 2, 'v', '1'});
+        assertThrows(IllegalStateException.class, () -> new PersistenceRangeDao(new DaoConfig(dir, 1 << 20)));
+    }
+
+    private static void assertBaselineData(PersistenceRangeDao dao) {
+        assertValue(dao, "k1", "v1");
+        assertValue(dao, "k2", "new");
+        assertNull(dao.get(bytes("k3")));
+        assertValue(dao, "k4", "");
+        assertValue(dao, "line\nbreak", "value\nwith\\escapes");
+        assertValue(dao, "back\\slash", "v");
+        assertValue(dao, "ключ", "значение");
+
+        List<String> keys = new ArrayList<>();
+        Iterator<BaseEntry<byte[]>> iterator = dao.get(null, null);
+        while (iterator.hasNext()) {
+            keys.add(new String(iterator.next().key(), StandardCharsets.UTF_8));
+        }
+        assertEquals(List.of("back\\slash", "k1", "k2", "k4", "line\nbreak", "ключ"), keys);
+    }
+
+    private static void assertValue(PersistenceRangeDao dao, String key, String value) {
+        BaseEntry<byte[]> entry = dao.get(bytes(key));
+        assertArrayEquals(bytes(value), entry == null ? null : entry.value(), key);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void copyBaselineFiles() throws IOException {
+        for (String file : BASELINE_FILES) {
+            try (InputStream in = LegacyFormatTest.class.getResourceAsStream("baseline/" + file)) {
+                Files.copy(in, dir.resolve(file));
+            }
+        }
+    }
+}